@@ -0,0 +1,61 @@
+package fr.michaelvilleneuve.benchmarks;
+
+import fr.michaelvilleneuve.helpers.QuadGeometry;
+
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outline of the text detector: the minimum area rectangle around the
+ * corners of every text block found on the page.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationBenchmark {
+
+  @Param({ "4", "32", "256" })
+  public int blocks;
+
+  private List<Point> points;
+
+  @Setup
+  public void setUp() {
+    DesktopOpenCV.load();
+    Random random = new Random(42);
+    points = new ArrayList<>();
+    for (int i = 0; i < blocks; i++) {
+      double x = 100 + random.nextInt(800);
+      double y = 100 + random.nextInt(1100);
+      double width = 20 + random.nextInt(200);
+      double height = 10 + random.nextInt(30);
+      points.add(new Point(x, y));
+      points.add(new Point(x + width, y));
+      points.add(new Point(x + width, y + height));
+      points.add(new Point(x, y + height));
+    }
+  }
+
+  @Benchmark
+  public Point[] minAreaQuad() {
+    return QuadGeometry.minAreaQuad(points);
+  }
+}
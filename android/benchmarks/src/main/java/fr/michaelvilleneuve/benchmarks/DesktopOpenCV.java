@@ -0,0 +1,26 @@
+package fr.michaelvilleneuve.benchmarks;
+
+/**
+ * Loads the OpenCV natives bundled with the desktop OpenCV jar. Benchmarks
+ * that need them fail in their setup on platforms the jar has no natives for,
+ * JMH then carries on with the others.
+ */
+public final class DesktopOpenCV {
+
+  private static boolean loaded;
+
+  private DesktopOpenCV() {
+  }
+
+  public static synchronized void load() {
+    if (loaded) {
+      return;
+    }
+    try {
+      nu.pattern.OpenCV.loadLocally();
+    } catch (Throwable e) {
+      throw new IllegalStateException("Desktop OpenCV natives are not available on this platform", e);
+    }
+    loaded = true;
+  }
+}
@@ -0,0 +1,82 @@
+package fr.michaelvilleneuve.benchmarks;
+
+import fr.michaelvilleneuve.customcrop.ContourDetector;
+import fr.michaelvilleneuve.customcrop.StageTimer;
+import fr.michaelvilleneuve.helpers.QuadGeometry;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detection with the contour detector as findDocument runs it: downscale to
+ * the detection size, then detect. The mean and largest distance between the
+ * detected and the actual page corners, in source pixels, are printed before
+ * each fixture size is measured.
+ *
+ * The text detector cannot take part: ML Kit ships only as Android libraries
+ * whose recognizer runs through Google Play services or a bundled native
+ * model, neither of which loads on a desktop JVM. Its side of the comparison
+ * comes from a device, with the timings option of findDocumentWithOptions and
+ * the corners it returns for the same pictures.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DetectorBenchmark {
+
+  @Param({ "2", "12", "48" })
+  public int megapixels;
+
+  private Fixtures.Document document;
+  private Mat image;
+  private Mat resized;
+  private ContourDetector detector;
+
+  @Setup
+  public void setUp() {
+    document = Fixtures.document(megapixels);
+    image = document.image;
+    resized = new Mat();
+    detector = new ContourDetector();
+    Point[] corners = detect();
+    if (corners == null) {
+      throw new IllegalStateException("The contour detector finds no document in the fixture");
+    }
+    Point[] sourceCorners = QuadGeometry.scalePoints(corners, 1 / document.detectionScale());
+    System.out.printf("Contour corner error at %d MP: mean %.1f px, max %.1f px%n", megapixels,
+        document.meanCornerError(sourceCorners), document.maxCornerError(sourceCorners));
+  }
+
+  @TearDown
+  public void tearDown() {
+    detector.release();
+    resized.release();
+    document.release();
+  }
+
+  @Benchmark
+  public Point[] detect() {
+    double scale = document.detectionScale();
+    Imgproc.resize(image, resized, new Size(), scale, scale, Imgproc.INTER_AREA);
+    return detector.detect(resized, new StageTimer("detect"));
+  }
+}
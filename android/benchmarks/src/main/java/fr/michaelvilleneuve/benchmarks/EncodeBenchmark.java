@@ -0,0 +1,101 @@
+package fr.michaelvilleneuve.benchmarks;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of the cropped image the way ImageEncoder does for JPEG and PNG,
+ * straight from the BGR Mat at the default quality, against the path crop
+ * took before: BGR to RGB, expanded to RGBA and copied into a Bitmap by
+ * matToBitmap, then read back and converted again by Bitmap.compress.
+ *
+ * Bitmap does not exist on a desktop JVM, so encodeThroughBitmap models it
+ * with a Java pixel array and the same encoder as encode. The difference
+ * between the two is the conversions and copies the BGR path removed, not a
+ * difference between encoders.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+
+  // CropOptions.quality
+  private static final int QUALITY = 70;
+
+  @Param({ "2", "12", "48" })
+  public int megapixels;
+
+  @Param({ "jpg", "png" })
+  public String format;
+
+  private Mat image;
+  private MatOfInt params;
+  private MatOfByte buffer;
+  private Mat rgb;
+  private Mat rgba;
+  private byte[] bitmapPixels;
+
+  @Setup
+  public void setUp() {
+    DesktopOpenCV.load();
+    image = Fixtures.document(megapixels).image;
+    params = "jpg".equals(format) ? new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, QUALITY) : new MatOfInt();
+    buffer = new MatOfByte();
+    rgb = new Mat();
+    rgba = new Mat();
+    bitmapPixels = new byte[(int) image.total() * 4];
+  }
+
+  @TearDown
+  public void tearDown() {
+    rgba.release();
+    rgb.release();
+    buffer.release();
+    params.release();
+    image.release();
+  }
+
+  @Benchmark
+  public long encode() {
+    if (!Imgcodecs.imencode("." + format, image, buffer, params)) {
+      throw new IllegalStateException("Could not encode");
+    }
+    return buffer.total();
+  }
+
+  @Benchmark
+  public long encodeThroughBitmap() {
+    // The crop ran in RGB, decoded images are BGR
+    Imgproc.cvtColor(image, rgb, Imgproc.COLOR_BGR2RGB);
+    // Utils.matToBitmap: expand to RGBA and copy into the Bitmap pixels
+    Imgproc.cvtColor(rgb, rgba, Imgproc.COLOR_RGB2RGBA);
+    rgba.get(0, 0, bitmapPixels);
+    // Bitmap.compress: read the pixels back and drop alpha for the encoder
+    rgba.put(0, 0, bitmapPixels);
+    Imgproc.cvtColor(rgba, rgb, Imgproc.COLOR_RGBA2BGR);
+    if (!Imgcodecs.imencode("." + format, rgb, buffer, params)) {
+      throw new IllegalStateException("Could not encode");
+    }
+    return buffer.total();
+  }
+}
@@ -0,0 +1,159 @@
+package fr.michaelvilleneuve.benchmarks;
+
+import fr.michaelvilleneuve.helpers.QuadGeometry;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/**
+ * Synthetic camera pictures of a document, generated rather than checked in
+ * so the fixtures cost nothing in the repository and are identical on every
+ * run: a skewed light page with lines of dark "text" on a darker noisy table.
+ * Benchmarks and tests get them here, OpenCV loaded, rather than each setting
+ * them up its own way.
+ */
+public final class Fixtures {
+
+  /** DetectionOptions.DEFAULT_MAX_DETECTION_SIZE, the long edge findDocument detects at. */
+  public static final int MAX_DETECTION_SIZE = 1024;
+
+  private static final Scalar TABLE = new Scalar(60, 70, 80);
+  private static final Scalar PAGE = new Scalar(235, 235, 230);
+  private static final Scalar INK = new Scalar(40, 40, 40);
+  private static final int TEXT_LINES = 30;
+
+  public static class Document {
+    /** BGR, owned by the caller. */
+    public final Mat image;
+    /** The page corners, top left, top right, bottom left, bottom right. */
+    public final Point[] corners;
+
+    Document(Mat image, Point[] corners) {
+      this.image = image;
+      this.corners = corners;
+    }
+
+    /**
+     * The page corners as ImageProcessor.detect stores them in originalPoints,
+     * labelled top left, top right, bottom right, bottom left but held in
+     * another order, the input crops must sort.
+     */
+    public Point[] detectedCorners() {
+      return new Point[] { corners[2], corners[0], corners[1], corners[3] };
+    }
+
+    /**
+     * Scale findDocument shrinks the image by before detecting.
+     */
+    public double detectionScale() {
+      return (double) MAX_DETECTION_SIZE / Math.max(image.cols(), image.rows());
+    }
+
+    public void release() {
+      image.release();
+    }
+
+    /**
+     * Largest distance, in pixels of the image, between a page corner and the
+     * detected corner at the same position, or infinity when nothing was
+     * detected. detected may be in any order.
+     */
+    public double maxCornerError(Point[] detected) {
+      double max = 0;
+      for (double error : cornerErrors(detected)) {
+        max = Math.max(max, error);
+      }
+      return max;
+    }
+
+    /**
+     * Average of the distances measured by maxCornerError.
+     */
+    public double meanCornerError(Point[] detected) {
+      double sum = 0;
+      for (double error : cornerErrors(detected)) {
+        sum += error;
+      }
+      return sum / 4;
+    }
+
+    private double[] cornerErrors(Point[] detected) {
+      double[] errors = new double[4];
+      if (detected == null || detected.length != 4) {
+        Arrays.fill(errors, Double.POSITIVE_INFINITY);
+        return errors;
+      }
+      Point[] expected = QuadGeometry.sortPoints(corners);
+      Point[] actual = QuadGeometry.sortPoints(detected);
+      for (int i = 0; i < 4; i++) {
+        errors[i] = Math.hypot(actual[i].x - expected[i].x, actual[i].y - expected[i].y);
+      }
+      return errors;
+    }
+  }
+
+  private Fixtures() {
+  }
+
+  /**
+   * A 4:3 picture of 2, 12 or 48 megapixels, the sizes of a low end, a
+   * common and a high end phone camera. Loads the desktop OpenCV natives first.
+   */
+  public static Document document(int megapixels) {
+    DesktopOpenCV.load();
+    int width;
+    int height;
+    switch (megapixels) {
+      case 2:
+        width = 1632;
+        height = 1224;
+        break;
+      case 12:
+        width = 4000;
+        height = 3000;
+        break;
+      case 48:
+        width = 8000;
+        height = 6000;
+        break;
+      default:
+        throw new IllegalArgumentException("No fixture of " + megapixels + " megapixels");
+    }
+
+    Point tl = new Point(0.12 * width, 0.10 * height);
+    Point tr = new Point(0.86 * width, 0.14 * height);
+    Point br = new Point(0.90 * width, 0.88 * height);
+    Point bl = new Point(0.08 * width, 0.92 * height);
+
+    Mat image = new Mat(height, width, CvType.CV_8UC3, TABLE);
+    MatOfPoint page = new MatOfPoint(tl, tr, br, bl);
+    Imgproc.fillConvexPoly(image, page, PAGE);
+    page.release();
+
+    int thickness = Math.max(1, height / 400);
+    for (int i = 1; i <= TEXT_LINES; i++) {
+      double t = (double) i / (TEXT_LINES + 1);
+      Point left = lerp(lerp(tl, bl, t), lerp(tr, br, t), 0.1);
+      Point right = lerp(lerp(tl, bl, t), lerp(tr, br, t), i % 4 == 0 ? 0.6 : 0.9);
+      Imgproc.line(image, left, right, INK, thickness);
+    }
+
+    Mat noise = new Mat(height, width, CvType.CV_8UC3);
+    Core.randu(noise, 0, 12);
+    Core.add(image, noise, image);
+    noise.release();
+
+    return new Document(image, new Point[] { tl, tr, bl, br });
+  }
+
+  private static Point lerp(Point a, Point b, double t) {
+    return new Point(a.x + (b.x - a.x) * t, a.y + (b.y - a.y) * t);
+  }
+}
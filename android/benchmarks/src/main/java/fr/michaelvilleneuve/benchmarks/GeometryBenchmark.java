@@ -0,0 +1,55 @@
+package fr.michaelvilleneuve.benchmarks;
+
+import fr.michaelvilleneuve.helpers.QuadGeometry;
+
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Corner geometry run on every detection and crop. Pure Java, needs no
+ * OpenCV natives.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeometryBenchmark {
+
+  private Point[] detected;
+  private Point[] corners;
+
+  @Setup
+  public void setUp() {
+    // As the detector returns them, in no particular order
+    detected = new Point[] { new Point(3410, 2650), new Point(480, 300), new Point(3440, 420), new Point(320, 2760) };
+    corners = new Point[] { new Point(480, 300), new Point(3440, 420), new Point(320, 2760), new Point(3410, 2650) };
+  }
+
+  @Benchmark
+  public Point[] sortPoints() {
+    return QuadGeometry.sortPoints(detected);
+  }
+
+  @Benchmark
+  public Point[] scaleAndSortPoints() {
+    return QuadGeometry.sortPoints(QuadGeometry.scalePoints(detected, 4.0));
+  }
+
+  @Benchmark
+  public double quadSize() {
+    return QuadGeometry.quadWidth(corners) + QuadGeometry.quadHeight(corners);
+  }
+}
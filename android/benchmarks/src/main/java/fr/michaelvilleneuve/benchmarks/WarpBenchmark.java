@@ -0,0 +1,75 @@
+package fr.michaelvilleneuve.benchmarks;
+
+import fr.michaelvilleneuve.customcrop.ParallelWarp;
+import fr.michaelvilleneuve.helpers.QuadGeometry;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The perspective warp of a full resolution crop, as cropWithOptions runs it,
+ * split into 1 to 8 bands.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WarpBenchmark {
+
+  @Param({ "2", "12", "48" })
+  public int megapixels;
+
+  @Param({ "1", "2", "4", "8" })
+  public int parallelism;
+
+  private ParallelWarp warper;
+  private Mat src;
+  private Mat dst;
+  private Mat warpMat;
+
+  @Setup
+  public void setUp() {
+    DesktopOpenCV.load();
+    Fixtures.Document document = Fixtures.document(megapixels);
+    src = document.image;
+
+    Point[] corners = document.corners;
+    int outWidth = (int) QuadGeometry.quadWidth(corners);
+    int outHeight = (int) QuadGeometry.quadHeight(corners);
+    dst = new Mat(outHeight, outWidth, src.type());
+    warpMat = QuadGeometry.cropTransform(corners, outWidth, outHeight);
+
+    warper = new ParallelWarp(parallelism, Executors.defaultThreadFactory());
+  }
+
+  @TearDown
+  public void tearDown() {
+    warper.shutdown();
+    warpMat.release();
+    dst.release();
+    src.release();
+  }
+
+  @Benchmark
+  public Mat warp() {
+    warper.warp(src, dst, warpMat, parallelism);
+    return dst;
+  }
+}
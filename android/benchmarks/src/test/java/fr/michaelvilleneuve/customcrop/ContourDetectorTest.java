@@ -0,0 +1,41 @@
+package fr.michaelvilleneuve.customcrop;
+
+import fr.michaelvilleneuve.benchmarks.Fixtures;
+import fr.michaelvilleneuve.helpers.QuadGeometry;
+
+import org.junit.Test;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContourDetectorTest {
+
+  // In pixels of the image the detector sees, the edge dilation alone moves corners by about two
+  private static final double MAX_CORNER_ERROR = 3;
+
+  @Test
+  public void findsThePageOfEveryFixture() {
+    for (int megapixels : new int[] { 2, 12, 48 }) {
+      Fixtures.Document document = Fixtures.document(megapixels);
+      Mat resized = new Mat();
+      ContourDetector detector = new ContourDetector();
+      try {
+        double scale = document.detectionScale();
+        Imgproc.resize(document.image, resized, new Size(), scale, scale, Imgproc.INTER_AREA);
+        Point[] detected = detector.detect(resized, new StageTimer("detect"));
+        assertNotNull("No document found at " + megapixels + " MP", detected);
+
+        double error = document.maxCornerError(QuadGeometry.scalePoints(detected, 1 / scale));
+        assertTrue("Corners off by " + error + " px at " + megapixels + " MP", error <= MAX_CORNER_ERROR / scale);
+      } finally {
+        detector.release();
+        resized.release();
+        document.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package fr.michaelvilleneuve.customcrop;
+
+import fr.michaelvilleneuve.benchmarks.Fixtures;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Mat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DecodedImageCacheTest {
+
+  private static final String IDENTITY = "file:///page.jpg|1000|1";
+  private static final long BUDGET = 64L * 1024 * 1024;
+
+  private Fixtures.Document document;
+  private DecodedImageCache cache;
+
+  @Before
+  public void setUp() {
+    document = Fixtures.document(2);
+    cache = new DecodedImageCache(BUDGET);
+  }
+
+  @After
+  public void tearDown() {
+    cache.clear();
+    document.release();
+  }
+
+  @Test
+  public void cropAfterFindDocumentReusesTheFullDecode() {
+    Mat full = document.image;
+
+    // ImageLoader.loadKeepingFullSize: a miss at the detection scale, then the full decode is cached
+    assertNull(cache.get(IDENTITY, 4));
+    cache.put(IDENTITY, 1, full);
+
+    // findDocument asking again gets a reduced copy, rounded up like a reduced decode
+    Mat detection = cache.get(IDENTITY, 4);
+    assertNotNull(detection);
+    assertEquals((full.cols() + 3) / 4, detection.cols());
+    assertEquals((full.rows() + 3) / 4, detection.rows());
+
+    // crop at full resolution shares the cached pixels instead of decoding again
+    Mat source = cache.get(IDENTITY, 1);
+    assertNotNull(source);
+    assertEquals(full.dataAddr(), source.dataAddr());
+
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    detection.release();
+    source.release();
+  }
+
+  @Test
+  public void keepsTheLargestDecodeOfAnImage() {
+    Mat quarter = DecodedImageCache.shrink(document.image, 4);
+    try {
+      cache.put(IDENTITY, 4, quarter);
+      assertNull("A quarter decode cannot serve a full resolution crop", cache.get(IDENTITY, 1));
+
+      cache.put(IDENTITY, 1, document.image);
+      cache.put(IDENTITY, 4, quarter);
+      assertEquals(document.image.total() * document.image.elemSize(), cache.getBytes());
+      Mat source = cache.get(IDENTITY, 1);
+      assertEquals(document.image.dataAddr(), source.dataAddr());
+      source.release();
+    } finally {
+      quarter.release();
+    }
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedImageBeyondTheBudget() {
+    long size = document.image.total() * document.image.elemSize();
+    cache.setMaxBytes(size * 2);
+    cache.put("a", 1, document.image);
+    cache.put("b", 1, document.image);
+    cache.get("a", 1).release();
+    cache.put("c", 1, document.image);
+
+    assertEquals(size * 2, cache.getBytes());
+    assertNull(cache.get("b", 1));
+    cache.get("a", 1).release();
+    cache.get("c", 1).release();
+  }
+}
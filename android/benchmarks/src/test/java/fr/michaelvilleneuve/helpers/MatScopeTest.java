@@ -0,0 +1,57 @@
+package fr.michaelvilleneuve.helpers;
+
+import fr.michaelvilleneuve.benchmarks.DesktopOpenCV;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Range;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MatScopeTest {
+
+  @BeforeClass
+  public static void loadOpenCV() {
+    DesktopOpenCV.load();
+  }
+
+  @Test
+  public void countsSubmatsAndSharedHeadersOnce() {
+    MatScope first = new MatScope();
+    MatScope second = new MatScope();
+    try {
+      Mat image = first.track(new Mat(480, 640, CvType.CV_8UC3));
+      first.track(image.submat(100, 200, 100, 300));
+      first.track(image.submat(0, 480, 320, 640));
+      second.track(new Mat(image, Range.all()));
+      long imageBytes = 480 * 640 * 3;
+
+      assertEquals(imageBytes, first.bytes());
+      assertEquals(imageBytes, MatScope.bytes(Arrays.asList(first, second)));
+
+      second.track(new Mat(10, 10, CvType.CV_8UC1));
+      assertEquals(imageBytes + 100, MatScope.bytes(Arrays.asList(first, second)));
+    } finally {
+      first.close();
+      second.close();
+    }
+  }
+
+  @Test
+  public void tracksThePeakBeforeTheScopeCloses() {
+    // Larger than anything else the tests allocate, so the peak can only come from here
+    long bytes = 8000L * 8000;
+    MatScope scope = new MatScope();
+    try {
+      scope.track(new Mat(8000, 8000, CvType.CV_8UC1));
+      assertTrue(MatScope.peakBytes() >= bytes);
+    } finally {
+      scope.close();
+    }
+  }
+}
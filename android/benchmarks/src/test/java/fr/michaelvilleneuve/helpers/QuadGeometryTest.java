@@ -0,0 +1,71 @@
+package fr.michaelvilleneuve.helpers;
+
+import fr.michaelvilleneuve.benchmarks.Fixtures;
+import fr.michaelvilleneuve.customcrop.ParallelWarp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuadGeometryTest {
+
+  private static final Scalar MARK = new Scalar(0, 0, 255);
+
+  private Fixtures.Document still;
+
+  @Before
+  public void setUp() {
+    still = Fixtures.document(2);
+  }
+
+  @After
+  public void tearDown() {
+    still.release();
+  }
+
+  @Test
+  public void cropOrderSortsTheLabelsOfDetectedCorners() {
+    Point[] corners = QuadGeometry.cropOrder(still.detectedCorners());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(still.corners[i], corners[i]);
+    }
+  }
+
+  @Test
+  public void croppedStillKeepsItsOrientation() {
+    // A red mark just inside the top left corner of the page
+    Point tl = still.corners[0];
+    Imgproc.circle(still.image, new Point(tl.x + 40, tl.y + 40), 20, MARK, -1);
+
+    // The warp of RNCustomCropModule.cropImage, on a single band
+    Point[] corners = QuadGeometry.cropOrder(still.detectedCorners());
+    int width = (int) QuadGeometry.quadWidth(corners);
+    int height = (int) QuadGeometry.quadHeight(corners);
+    Mat warpMat = QuadGeometry.cropTransform(corners, width, height);
+    Mat doc = new Mat(height, width, still.image.type());
+    ParallelWarp warper = new ParallelWarp(1, Executors.defaultThreadFactory());
+    try {
+      warper.warp(still.image, doc, warpMat, 1);
+
+      // The page of the fixture is wider than tall, a rotated crop is not
+      assertTrue(doc.cols() > doc.rows());
+      Scalar topLeft = Core.mean(doc.submat(new Rect(30, 30, 20, 20)));
+      assertTrue("The mark is not in the top left corner of the crop", topLeft.val[2] > 200 && topLeft.val[0] < 60);
+    } finally {
+      warper.shutdown();
+      doc.release();
+      warpMat.release();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package org.opencv.android;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDrawRectsTest {
+
+  private static final int FRAMES = 100000;
+  // A single allocation per frame would be megabytes
+  private static final long MAX_ALLOCATED_BYTES = 1024;
+
+  @Test
+  public void centersTheScaledBitmapOnTheCanvas() {
+    FrameDrawRects rects = new FrameDrawRects();
+
+    assertTrue(rects.update(2000, 1200, 1280, 720, 1.5f));
+    assertRects(rects, 1280, 720, 40, 60, 1960, 1140);
+
+    assertTrue(rects.update(1000, 600, 1280, 720, 1.5f));
+    assertRects(rects, 1280, 720, -460, -240, 1460, 840);
+
+    assertTrue(rects.update(1000, 600, 640, 480, 0));
+    assertRects(rects, 640, 480, 180, 60, 820, 540);
+
+    assertFalse("Unchanged sizes must keep the rectangles", rects.update(1000, 600, 640, 480, 0));
+  }
+
+  @Test
+  public void drawingAFrameAllocatesNothing() {
+    FrameDrawRects rects = new FrameDrawRects();
+    // Warm up, so the measure covers the compiled code the preview runs
+    drawFrames(rects);
+
+    // What reading the counter allocates by itself
+    long start = allocatedBytes();
+    long overhead = allocatedBytes() - start;
+
+    start = allocatedBytes();
+    drawFrames(rects);
+    long allocated = allocatedBytes() - start - overhead;
+
+    assertTrue("Allocated " + allocated + " bytes over " + FRAMES + " frames", allocated < MAX_ALLOCATED_BYTES);
+  }
+
+  /**
+   * What the preview does per frame, with the canvas size changing now and then.
+   */
+  private static void drawFrames(FrameDrawRects rects) {
+    for (int i = 0; i < FRAMES; i++) {
+      int canvasWidth = i % 1000 == 0 ? 1000 : 2000;
+      rects.update(canvasWidth, 1200, 1280, 720, 1.5f);
+    }
+  }
+
+  private static long allocatedBytes() {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void assertRects(FrameDrawRects rects, int srcWidth, int srcHeight, int left, int top, int right,
+      int bottom) {
+    assertEquals(srcWidth, rects.mSrcWidth);
+    assertEquals(srcHeight, rects.mSrcHeight);
+    assertEquals(left, rects.mDstLeft);
+    assertEquals(top, rects.mDstTop);
+    assertEquals(right, rects.mDstRight);
+    assertEquals(bottom, rects.mDstBottom);
+  }
+}
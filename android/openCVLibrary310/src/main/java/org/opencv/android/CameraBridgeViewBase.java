@@ -38,6 +38,10 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
     private CvCameraViewListener2 mListener;
     private boolean mSurfaceExist;
     private Object mSyncObject = new Object();
+    // Bitmap and destination rectangles, recomputed only when the canvas or bitmap size changes
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDstRect = new Rect();
+    private final FrameDrawRects mDrawRects = new FrameDrawRects();
 
     protected int mFrameWidth;
     protected int mFrameHeight;
@@ -189,6 +193,27 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         public Mat gray();
     };
 
+    public interface PictureCallback {
+        /**
+         * This method is invoked with the JPEG of a still picture of width x height, in the
+         * orientation of the preview frames, on a camera thread.
+         */
+        public void onPictureTaken(byte[] jpeg, int width, int height);
+
+        /**
+         * This method is invoked instead of onPictureTaken() when no picture could be taken.
+         */
+        public void onPictureFailed(String message);
+    }
+
+    /**
+     * Takes a still picture at the size selected by calculatePictureSize() while the preview runs.
+     * Exactly one of the callback methods is invoked. Views that cannot take pictures report a failure.
+     */
+    public void takePicture(PictureCallback callback) {
+        callback.onPictureFailed("Still pictures are not supported by this camera view");
+    }
+
     public void surfaceChanged(SurfaceHolder arg0, int arg1, int arg2, int arg3) {
         Log.d(TAG, "call surfaceChanged event");
         synchronized(mSyncObject) {
@@ -409,21 +434,8 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
             Canvas canvas = getHolder().lockCanvas();
             if (canvas != null) {
                 canvas.drawColor(0, android.graphics.PorterDuff.Mode.CLEAR);
-                Log.d(TAG, "mStretch value: " + mScale);
-
-                if (mScale != 0) {
-                    canvas.drawBitmap(mCacheBitmap, new Rect(0,0,mCacheBitmap.getWidth(), mCacheBitmap.getHeight()),
-                         new Rect((int)((canvas.getWidth() - mScale*mCacheBitmap.getWidth()) / 2),
-                         (int)((canvas.getHeight() - mScale*mCacheBitmap.getHeight()) / 2),
-                         (int)((canvas.getWidth() - mScale*mCacheBitmap.getWidth()) / 2 + mScale*mCacheBitmap.getWidth()),
-                         (int)((canvas.getHeight() - mScale*mCacheBitmap.getHeight()) / 2 + mScale*mCacheBitmap.getHeight())), null);
-                } else {
-                     canvas.drawBitmap(mCacheBitmap, new Rect(0,0,mCacheBitmap.getWidth(), mCacheBitmap.getHeight()),
-                         new Rect((canvas.getWidth() - mCacheBitmap.getWidth()) / 2,
-                         (canvas.getHeight() - mCacheBitmap.getHeight()) / 2,
-                         (canvas.getWidth() - mCacheBitmap.getWidth()) / 2 + mCacheBitmap.getWidth(),
-                         (canvas.getHeight() - mCacheBitmap.getHeight()) / 2 + mCacheBitmap.getHeight()), null);
-                }
+                updateDrawRects(canvas.getWidth(), canvas.getHeight());
+                canvas.drawBitmap(mCacheBitmap, mSrcRect, mDstRect, null);
 
                 if (mFpsMeter != null) {
                     mFpsMeter.measure();
@@ -434,6 +446,17 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
         }
     }
 
+    /**
+     * Centers the bitmap on the canvas, scaled by mScale when it is set. Runs for every frame,
+     * the rectangles are only set again when one of the sizes changed, see FrameDrawRects.
+     */
+    private void updateDrawRects(int canvasWidth, int canvasHeight) {
+        if (mDrawRects.update(canvasWidth, canvasHeight, mCacheBitmap.getWidth(), mCacheBitmap.getHeight(), mScale)) {
+            mSrcRect.set(0, 0, mDrawRects.mSrcWidth, mDrawRects.mSrcHeight);
+            mDstRect.set(mDrawRects.mDstLeft, mDrawRects.mDstTop, mDrawRects.mDstRight, mDrawRects.mDstBottom);
+        }
+    }
+
     /**
      * This method is invoked shall perform concrete operation to initialize the camera.
      * CONTRACT: as a result of this method variables mFrameWidth and mFrameHeight MUST be
@@ -482,12 +505,42 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
 
             if (width <= maxAllowedWidth && height <= maxAllowedHeight) {
                 if (width >= calcWidth && height >= calcHeight) {
-                    calcWidth = (int) width;
-                    calcHeight = (int) height;
+                    calcWidth = width;
+                    calcHeight = height;
                 }
             }
         }
 
         return new Size(calcWidth, calcHeight);
     }
+
+    /**
+     * This helper method can be called by subclasses to select the still picture size once the
+     * preview size is known. It selects the largest size with the aspect ratio of the preview
+     * frames, so the preview maps onto the picture by a plain scale, or the largest size when
+     * none has that aspect ratio.
+     * @param supportedSizes
+     * @return picture size
+     */
+    protected Size calculatePictureSize(List<?> supportedSizes, ListItemAccessor accessor) {
+        double previewAspect = (double) mFrameWidth / mFrameHeight;
+        int calcWidth = 0;
+        int calcHeight = 0;
+        boolean calcMatches = false;
+
+        for (Object size : supportedSizes) {
+            int width = accessor.getWidth(size);
+            int height = accessor.getHeight(size);
+            boolean matches = Math.abs((double) width / height - previewAspect) < 0.01 * previewAspect;
+
+            if ((matches && !calcMatches)
+                    || (matches == calcMatches && (long) width * height > (long) calcWidth * calcHeight)) {
+                calcWidth = width;
+                calcHeight = height;
+                calcMatches = matches;
+            }
+        }
+
+        return new Size(calcWidth, calcHeight);
+    }
 }
@@ -0,0 +1,48 @@
+package org.opencv.android;
+
+/**
+ * Where CameraBridgeViewBase draws its cached frame bitmap: all of the bitmap, centered on the
+ * canvas and scaled by the view scale when it is set. Free of Android classes, so the per frame
+ * path can be checked on a desktop JVM.
+ */
+class FrameDrawRects {
+    int mSrcWidth;
+    int mSrcHeight;
+    int mDstLeft;
+    int mDstTop;
+    int mDstRight;
+    int mDstBottom;
+
+    private int mCanvasWidth = -1;
+    private int mCanvasHeight = -1;
+    private float mScale = -1;
+
+    /**
+     * Recomputes the rectangles for the given sizes, scale 0 drawing the bitmap unscaled.
+     * Runs for every frame, so it never allocates and returns false, leaving the rectangles as
+     * they are, when no size changed since the last call.
+     */
+    boolean update(int canvasWidth, int canvasHeight, int bitmapWidth, int bitmapHeight, float scale) {
+        if (canvasWidth == mCanvasWidth && canvasHeight == mCanvasHeight && scale == mScale
+                && bitmapWidth == mSrcWidth && bitmapHeight == mSrcHeight)
+            return false;
+
+        mSrcWidth = bitmapWidth;
+        mSrcHeight = bitmapHeight;
+        if (scale != 0) {
+            mDstLeft = (int)((canvasWidth - scale*bitmapWidth) / 2);
+            mDstTop = (int)((canvasHeight - scale*bitmapHeight) / 2);
+            mDstRight = (int)((canvasWidth - scale*bitmapWidth) / 2 + scale*bitmapWidth);
+            mDstBottom = (int)((canvasHeight - scale*bitmapHeight) / 2 + scale*bitmapHeight);
+        } else {
+            mDstLeft = (canvasWidth - bitmapWidth) / 2;
+            mDstTop = (canvasHeight - bitmapHeight) / 2;
+            mDstRight = mDstLeft + bitmapWidth;
+            mDstBottom = mDstTop + bitmapHeight;
+        }
+        mCanvasWidth = canvasWidth;
+        mCanvasHeight = canvasHeight;
+        mScale = scale;
+        return true;
+    }
+}
@@ -0,0 +1,594 @@
+package org.opencv.android;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Surface;
+import android.view.ViewGroup.LayoutParams;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * This class is an implementation of the Bridge View between OpenCV and the Camera2 API.
+ * Preview frames are read from an ImageReader in YUV_420_888 and delivered to the same
+ * CvCameraViewListener2 callbacks as JavaCameraView, on a background thread of this view.
+ * Still pictures are captured as JPEG through a second ImageReader in the same session.
+ * Requires API 21.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class JavaCamera2View extends CameraBridgeViewBase {
+
+    private static final String TAG = "JavaCamera2View";
+    // One image being processed and one being filled, acquireLatestImage drops anything older
+    private static final int MAX_IMAGES = 2;
+    private static final Field sBufferAddress = lookUpBufferAddress();
+
+    private ImageReader mImageReader;
+    private ImageReader mPictureReader;
+    private int mPictureWidth;
+    private int mPictureHeight;
+    // Only touched on the background thread
+    private PictureCallback mPictureCallback;
+    private CameraDevice mCameraDevice;
+    private CameraCaptureSession mCaptureSession;
+    private String mCameraID;
+    private HandlerThread mBackgroundThread;
+    private Handler mBackgroundHandler;
+    private CameraStateCallback mStateCallback;
+    private JavaCamera2Frame mFrame;
+
+    public static class Camera2SizeAccessor implements ListItemAccessor {
+
+        @Override
+        public int getWidth(Object obj) {
+            return ((android.util.Size) obj).getWidth();
+        }
+
+        @Override
+        public int getHeight(Object obj) {
+            return ((android.util.Size) obj).getHeight();
+        }
+    }
+
+    public JavaCamera2View(Context context, int cameraId) {
+        super(context, cameraId);
+    }
+
+    public JavaCamera2View(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    /**
+     * True when the camera this view would open runs Camera2 natively rather than through
+     * the legacy shim, where JavaCameraView is the better choice.
+     */
+    public static boolean isSupported(Context context, int cameraIndex) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return false;
+        try {
+            CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+            String id = findCamera(manager, cameraIndex);
+            if (id == null)
+                return false;
+            Integer level = manager.getCameraCharacteristics(id).get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level != null && level != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        } catch (CameraAccessException e) {
+            return false;
+        }
+    }
+
+    private static String findCamera(CameraManager manager, int cameraIndex) throws CameraAccessException {
+        String[] ids = manager.getCameraIdList();
+        if (ids.length == 0)
+            return null;
+        if (cameraIndex == CAMERA_ID_ANY)
+            return ids[0];
+        if (cameraIndex != CAMERA_ID_BACK && cameraIndex != CAMERA_ID_FRONT)
+            return cameraIndex < ids.length ? ids[cameraIndex] : null;
+
+        int facing = cameraIndex == CAMERA_ID_FRONT
+                ? CameraCharacteristics.LENS_FACING_FRONT
+                : CameraCharacteristics.LENS_FACING_BACK;
+        for (String id : ids) {
+            Integer lensFacing = manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+            if (lensFacing != null && lensFacing == facing)
+                return id;
+        }
+        return null;
+    }
+
+    @Override
+    protected boolean connectCamera(int width, int height) {
+        Log.d(TAG, "Connecting to camera");
+        startBackgroundThread();
+        try {
+            CameraManager manager = (CameraManager) getContext().getSystemService(Context.CAMERA_SERVICE);
+            mCameraID = findCamera(manager, mCameraIndex);
+            if (mCameraID == null) {
+                Log.e(TAG, "No camera matches index " + mCameraIndex);
+                stopBackgroundThread();
+                return false;
+            }
+
+            StreamConfigurationMap map = manager.getCameraCharacteristics(mCameraID)
+                    .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            android.util.Size[] sizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+            Size frameSize = calculateCameraFrameSize(Arrays.asList(sizes), new Camera2SizeAccessor(), width, height);
+            if (frameSize.width == 0 || frameSize.height == 0) {
+                Log.e(TAG, "No preview size fits " + width + "x" + height);
+                stopBackgroundThread();
+                return false;
+            }
+            mFrameWidth = (int) frameSize.width;
+            mFrameHeight = (int) frameSize.height;
+            Log.d(TAG, "Set preview size to " + mFrameWidth + "x" + mFrameHeight);
+
+            android.util.Size[] pictureSizes = map.getOutputSizes(ImageFormat.JPEG);
+            Size pictureSize = calculatePictureSize(Arrays.asList(pictureSizes), new Camera2SizeAccessor());
+            mPictureWidth = (int) pictureSize.width;
+            mPictureHeight = (int) pictureSize.height;
+            Log.d(TAG, "Set picture size to " + mPictureWidth + "x" + mPictureHeight);
+
+            if ((getLayoutParams().width == LayoutParams.MATCH_PARENT) && (getLayoutParams().height == LayoutParams.MATCH_PARENT))
+                mScale = Math.min(((float)height)/mFrameHeight, ((float)width)/mFrameWidth);
+            else
+                mScale = 0;
+
+            if (mFpsMeter != null)
+                mFpsMeter.setResolution(mFrameWidth, mFrameHeight);
+
+            AllocateCache();
+            mFrame = new JavaCamera2Frame(mFrameWidth, mFrameHeight);
+
+            mStateCallback = new CameraStateCallback();
+            manager.openCamera(mCameraID, mStateCallback, new Handler(Looper.getMainLooper()));
+            return true;
+        } catch (CameraAccessException | SecurityException | IllegalArgumentException e) {
+            Log.e(TAG, "Could not open camera", e);
+            stopBackgroundThread();
+            return false;
+        }
+    }
+
+    @Override
+    protected void disconnectCamera() {
+        Log.d(TAG, "Disconnecting from camera");
+        if (mStateCallback != null) {
+            mStateCallback.mDisconnected = true;
+            mStateCallback = null;
+        }
+        Handler handler = mBackgroundHandler;
+        if (handler != null) {
+            // Closed on the frame thread so no frame is being read while the reader goes away
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    closeCamera();
+                }
+            });
+        }
+        stopBackgroundThread();
+        if (mFrame != null) {
+            mFrame.release();
+            mFrame = null;
+        }
+    }
+
+    /*
+     * Camera state of one connection. Delivered on the main thread, where disconnectCamera runs,
+     * because the background thread may already be gone when the camera finishes opening. A
+     * camera that opens after its connection was disconnected is closed right away.
+     */
+    private class CameraStateCallback extends CameraDevice.StateCallback {
+        // Only touched on the main thread
+        boolean mDisconnected;
+
+        @Override
+        public void onOpened(final CameraDevice cameraDevice) {
+            Handler handler = mBackgroundHandler;
+            if (mDisconnected || handler == null) {
+                Log.d(TAG, "Camera opened after disconnecting, closing it");
+                cameraDevice.close();
+                return;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCameraDevice = cameraDevice;
+                    createCaptureSession();
+                }
+            });
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice cameraDevice) {
+            cameraDevice.close();
+            forget(cameraDevice);
+        }
+
+        @Override
+        public void onError(CameraDevice cameraDevice, int error) {
+            Log.e(TAG, "Camera error " + error);
+            cameraDevice.close();
+            forget(cameraDevice);
+        }
+
+        private void forget(final CameraDevice cameraDevice) {
+            Handler handler = mBackgroundHandler;
+            if (mDisconnected || handler == null)
+                return;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCameraDevice == cameraDevice)
+                        mCameraDevice = null;
+                }
+            });
+        }
+    }
+
+    private void createCaptureSession() {
+        mImageReader = ImageReader.newInstance(mFrameWidth, mFrameHeight, ImageFormat.YUV_420_888, MAX_IMAGES);
+        mImageReader.setOnImageAvailableListener(mOnImageAvailable, mBackgroundHandler);
+        final Surface surface = mImageReader.getSurface();
+        mPictureReader = ImageReader.newInstance(mPictureWidth, mPictureHeight, ImageFormat.JPEG, 1);
+        mPictureReader.setOnImageAvailableListener(mOnPictureAvailable, mBackgroundHandler);
+        try {
+            mCameraDevice.createCaptureSession(Arrays.asList(surface, mPictureReader.getSurface()), new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(CameraCaptureSession session) {
+                    // closeCamera() ran while the session was being configured
+                    if (mCameraDevice == null) {
+                        session.close();
+                        return;
+                    }
+                    mCaptureSession = session;
+                    try {
+                        CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                        builder.addTarget(surface);
+                        builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                        session.setRepeatingRequest(builder.build(), null, mBackgroundHandler);
+                    } catch (CameraAccessException e) {
+                        Log.e(TAG, "Could not start the preview", e);
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession session) {
+                    Log.e(TAG, "Capture session configuration failed");
+                }
+            }, mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not create the capture session", e);
+        }
+    }
+
+    private final ImageReader.OnImageAvailableListener mOnImageAvailable = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            // Frames that queued up while the previous one was processed are stale, skip to the newest
+            Image image = reader.acquireLatestImage();
+            if (image == null)
+                return;
+            try {
+                mFrame.setImage(image);
+                deliverAndDrawFrame(mFrame);
+            } finally {
+                mFrame.setImage(null);
+                image.close();
+            }
+        }
+    };
+
+    @Override
+    public void takePicture(final PictureCallback callback) {
+        Handler handler = mBackgroundHandler;
+        boolean posted = handler != null && handler.post(new Runnable() {
+            @Override
+            public void run() {
+                capturePicture(callback);
+            }
+        });
+        if (!posted)
+            callback.onPictureFailed("Camera is not open");
+    }
+
+    private void capturePicture(PictureCallback callback) {
+        if (mCaptureSession == null || mPictureReader == null) {
+            callback.onPictureFailed("Camera is not open");
+            return;
+        }
+        if (mPictureCallback != null) {
+            callback.onPictureFailed("A picture is already being taken");
+            return;
+        }
+        try {
+            CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.addTarget(mPictureReader.getSurface());
+            builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            mCaptureSession.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+                    failPicture("Capture failed with reason " + failure.getReason());
+                }
+            }, mBackgroundHandler);
+            mPictureCallback = callback;
+        } catch (CameraAccessException | IllegalStateException e) {
+            callback.onPictureFailed("Could not take a picture: " + e.getMessage());
+        }
+    }
+
+    private final ImageReader.OnImageAvailableListener mOnPictureAvailable = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null)
+                return;
+            byte[] jpeg;
+            int width = image.getWidth();
+            int height = image.getHeight();
+            try {
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                jpeg = new byte[buffer.remaining()];
+                buffer.get(jpeg);
+            } finally {
+                image.close();
+            }
+            PictureCallback callback = mPictureCallback;
+            mPictureCallback = null;
+            if (callback != null)
+                callback.onPictureTaken(jpeg, width, height);
+        }
+    };
+
+    private void failPicture(String message) {
+        PictureCallback callback = mPictureCallback;
+        mPictureCallback = null;
+        if (callback != null)
+            callback.onPictureFailed(message);
+    }
+
+    private void closeCamera() {
+        failPicture("Camera was closed");
+        if (mCaptureSession != null) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        if (mCameraDevice != null) {
+            mCameraDevice.close();
+            mCameraDevice = null;
+        }
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        if (mPictureReader != null) {
+            mPictureReader.close();
+            mPictureReader = null;
+        }
+    }
+
+    private void startBackgroundThread() {
+        mBackgroundThread = new HandlerThread("OpenCVCameraBackground");
+        mBackgroundThread.start();
+        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+    }
+
+    private void stopBackgroundThread() {
+        if (mBackgroundThread == null)
+            return;
+        mBackgroundThread.quitSafely();
+        try {
+            mBackgroundThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mBackgroundThread = null;
+        mBackgroundHandler = null;
+    }
+
+    /*
+     * Native address of a direct buffer, read from java.nio.Buffer.address, or 0 when the field
+     * cannot be read on this runtime.
+     */
+    private static long bufferAddress(ByteBuffer buffer) {
+        if (sBufferAddress == null || !buffer.isDirect())
+            return 0;
+        try {
+            return sBufferAddress.getLong(buffer);
+        } catch (IllegalAccessException e) {
+            return 0;
+        }
+    }
+
+    private static Field lookUpBufferAddress() {
+        try {
+            Field field = Buffer.class.getDeclaredField("address");
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            Log.w(TAG, "Buffer addresses are not readable, chroma is copied per pixel", e);
+            return null;
+        }
+    }
+
+    /*
+     * Frame over the planes of the current Image. The Java Mat of this OpenCV version cannot wrap
+     * a ByteBuffer, so each plane is copied on first use, only the Y plane when the consumer asks
+     * for gray only. Rows go from the plane buffer into the Mat through one reused row buffer,
+     * which stays in cache, and nothing is allocated per frame.
+     *
+     * Most devices deliver the chroma planes interleaved in one buffer, V then U one byte apart,
+     * which is NV21 once the row padding is dropped. The V plane rows are then copied in bulk and
+     * converted as NV21, NV12 likewise when U comes first. Other layouts take the per-pixel copy
+     * into I420.
+     */
+    private class JavaCamera2Frame implements CvCameraViewFrame {
+        private static final int CHROMA_UNKNOWN = 0;
+        private static final int CHROMA_PLANAR = 1;
+        private static final int CHROMA_NV21 = 2;
+        private static final int CHROMA_NV12 = 3;
+
+        @Override
+        public Mat gray() {
+            loadLuma();
+            return mGray;
+        }
+
+        @Override
+        public Mat rgba() {
+            if (!mRgbaReady) {
+                loadLuma();
+                Image.Plane[] planes = mImage.getPlanes();
+                if (mChromaLayout == CHROMA_UNKNOWN)
+                    mChromaLayout = detectChromaLayout(planes[1], planes[2]);
+
+                // Only the chroma rows, the luma rows are already in place
+                int conversion;
+                if (mChromaLayout == CHROMA_NV21) {
+                    copyInterleaved(planes[2], planes[1]);
+                    conversion = Imgproc.COLOR_YUV2RGBA_NV21;
+                } else if (mChromaLayout == CHROMA_NV12) {
+                    copyInterleaved(planes[1], planes[2]);
+                    conversion = Imgproc.COLOR_YUV2RGBA_NV12;
+                } else {
+                    int lumaSize = mWidth * mHeight;
+                    copyPlane(planes[1], mWidth / 2, mHeight / 2, lumaSize);
+                    copyPlane(planes[2], mWidth / 2, mHeight / 2, lumaSize + lumaSize / 4);
+                    conversion = Imgproc.COLOR_YUV2RGBA_I420;
+                }
+                Imgproc.cvtColor(mYuvFrameData, mRgba, conversion, 4);
+                mRgbaReady = true;
+            }
+            return mRgba;
+        }
+
+        public JavaCamera2Frame(int width, int height) {
+            super();
+            mWidth = width;
+            mHeight = height;
+            mRowBytes = new byte[width];
+            mYuvFrameData = new Mat(height + (height/2), width, CvType.CV_8UC1);
+            mGray = mYuvFrameData.submat(0, height, 0, width);
+            mRgba = new Mat();
+        }
+
+        public void setImage(Image image) {
+            mImage = image;
+            mLumaLoaded = false;
+            mRgbaReady = false;
+        }
+
+        public void release() {
+            mGray.release();
+            mYuvFrameData.release();
+            mRgba.release();
+        }
+
+        private void loadLuma() {
+            if (!mLumaLoaded) {
+                copyPlane(mImage.getPlanes()[0], mWidth, mHeight, 0);
+                mLumaLoaded = true;
+            }
+        }
+
+        /*
+         * The layout stays the same for the whole session, so it is decided once, from the pixel
+         * strides and from where the buffers start: interleaved chroma is one buffer, with the
+         * buffer of the second plane one byte after the first. When the addresses cannot be read
+         * the frame takes the per-pixel copy, which is right for every layout.
+         */
+        private int detectChromaLayout(Image.Plane u, Image.Plane v) {
+            if (u.getPixelStride() != 2 || v.getPixelStride() != 2 || u.getRowStride() != v.getRowStride())
+                return CHROMA_PLANAR;
+            long uAddress = bufferAddress(u.getBuffer());
+            long vAddress = bufferAddress(v.getBuffer());
+            if (uAddress == 0 || vAddress == 0)
+                return CHROMA_PLANAR;
+            if (uAddress == vAddress + 1)
+                return CHROMA_NV21;
+            if (vAddress == uAddress + 1)
+                return CHROMA_NV12;
+            return CHROMA_PLANAR;
+        }
+
+        /*
+         * Copies interleaved chroma below the luma, a row at a time. The buffer of the first plane
+         * stops one byte short of the last pair, that byte is the last one of the second plane.
+         */
+        private void copyInterleaved(Image.Plane first, Image.Plane second) {
+            ByteBuffer buffer = first.getBuffer();
+            int rowStride = first.getRowStride();
+            int rows = mHeight / 2;
+            int rowBytes = (mWidth / 2) * 2;
+            for (int row = 0; row < rows; row++) {
+                buffer.position(row * rowStride);
+                if (row < rows - 1) {
+                    buffer.get(mRowBytes, 0, rowBytes);
+                } else {
+                    buffer.get(mRowBytes, 0, rowBytes - 1);
+                    mRowBytes[rowBytes - 1] = second.getBuffer().get(row * rowStride + rowBytes - 2);
+                }
+                mYuvFrameData.put(mHeight + row, 0, mRowBytes, rowBytes);
+            }
+        }
+
+        /*
+         * Copies a width x height plane into mYuvFrameData from byte offset on, dropping the row
+         * and pixel padding. The Mat is continuous, so a put runs on across its rows.
+         */
+        private void copyPlane(Image.Plane plane, int width, int height, int offset) {
+            ByteBuffer buffer = plane.getBuffer();
+            int rowStride = plane.getRowStride();
+            int pixelStride = plane.getPixelStride();
+            for (int row = 0; row < height; row++) {
+                int rowStart = row * rowStride;
+                if (pixelStride == 1) {
+                    buffer.position(rowStart);
+                    buffer.get(mRowBytes, 0, width);
+                } else {
+                    for (int col = 0; col < width; col++)
+                        mRowBytes[col] = buffer.get(rowStart + col * pixelStride);
+                }
+                int out = offset + row * width;
+                mYuvFrameData.put(out / mWidth, out % mWidth, mRowBytes, width);
+            }
+        }
+
+        private final Mat mYuvFrameData;
+        private final Mat mGray;
+        private final Mat mRgba;
+        // One row of the widest plane, the luma
+        private final byte[] mRowBytes;
+        private final int mWidth;
+        private final int mHeight;
+        private Image mImage;
+        private boolean mLumaLoaded;
+        private boolean mRgbaReady;
+        private int mChromaLayout = CHROMA_UNKNOWN;
+    };
+}
@@ -30,15 +30,16 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
     private static final int MAGIC_TEXTURE_ID = 10;
     private static final String TAG = "JavaCameraView";
+    // One buffer being filled by the camera, one waiting for the worker and one being processed
+    private static final int FRAME_BUFFER_COUNT = 3;
 
-    private byte mBuffer[];
-    private Mat[] mFrameChain;
-    private int mChainIdx = 0;
+    private byte[] mPendingFrame;
     private Thread mThread;
     private boolean mStopThread;
 
     protected Camera mCamera;
-    protected JavaCameraFrame[] mCameraFrame;
+    private PictureCallback mPictureCallback;
+    protected JavaCameraFrame mCameraFrame;
     private SurfaceTexture mSurfaceTexture;
 
     public static class JavaCameraSizeAccessor implements ListItemAccessor {
@@ -163,6 +164,15 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
                     mFrameWidth = params.getPreviewSize().width;
                     mFrameHeight = params.getPreviewSize().height;
 
+                    List<android.hardware.Camera.Size> pictureSizes = params.getSupportedPictureSizes();
+                    if (pictureSizes != null && !pictureSizes.isEmpty()) {
+                        Size pictureSize = calculatePictureSize(pictureSizes, new JavaCameraSizeAccessor());
+                        Log.d(TAG, "Set picture size to " + (int)pictureSize.width + "x" + (int)pictureSize.height);
+                        params.setPictureFormat(ImageFormat.JPEG);
+                        params.setPictureSize((int)pictureSize.width, (int)pictureSize.height);
+                        mCamera.setParameters(params);
+                    }
+
                     if ((getLayoutParams().width == LayoutParams.MATCH_PARENT) && (getLayoutParams().height == LayoutParams.MATCH_PARENT))
                         mScale = Math.min(((float)height)/mFrameHeight, ((float)width)/mFrameWidth);
                     else
@@ -174,20 +184,14 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
                     int size = mFrameWidth * mFrameHeight;
                     size  = size * ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8;
-                    mBuffer = new byte[size];
-
-                    mCamera.addCallbackBuffer(mBuffer);
+                    mPendingFrame = null;
+                    for (int i = 0; i < FRAME_BUFFER_COUNT; i++)
+                        mCamera.addCallbackBuffer(new byte[size]);
                     mCamera.setPreviewCallbackWithBuffer(this);
 
-                    mFrameChain = new Mat[2];
-                    mFrameChain[0] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
-                    mFrameChain[1] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
-
                     AllocateCache();
 
-                    mCameraFrame = new JavaCameraFrame[2];
-                    mCameraFrame[0] = new JavaCameraFrame(mFrameChain[0], mFrameWidth, mFrameHeight);
-                    mCameraFrame[1] = new JavaCameraFrame(mFrameChain[1], mFrameWidth, mFrameHeight);
+                    mCameraFrame = new JavaCameraFrame(mFrameWidth, mFrameHeight);
 
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
                         mSurfaceTexture = new SurfaceTexture(MAGIC_TEXTURE_ID);
@@ -219,19 +223,19 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
                 mCamera.release();
             }
             mCamera = null;
-            if (mFrameChain != null) {
-                mFrameChain[0].release();
-                mFrameChain[1].release();
+            mPendingFrame = null;
+            // A released camera never delivers the picture in flight
+            if (mPictureCallback != null) {
+                mPictureCallback.onPictureFailed("Camera was closed");
+                mPictureCallback = null;
             }
             if (mCameraFrame != null) {
-                mCameraFrame[0].release();
-                mCameraFrame[1].release();
+                mCameraFrame.release();
+                mCameraFrame = null;
             }
         }
     }
 
-    private boolean mCameraFrameReady = false;
-
     @Override
     protected boolean connectCamera(int width, int height) {
 
@@ -243,8 +247,6 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         if (!initializeCamera(width, height))
             return false;
 
-        mCameraFrameReady = false;
-
         /* now we can start update thread */
         Log.d(TAG, "Starting processing thread");
         mStopThread = false;
@@ -277,50 +279,133 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
         /* Now release camera */
         releaseCamera();
-
-        mCameraFrameReady = false;
     }
 
+    /*
+     * The buffer is handed to the worker as is, only a reference changes hands under the lock.
+     * A frame the worker has not picked up yet is stale: its buffer goes back to the camera.
+     */
     @Override
     public void onPreviewFrame(byte[] frame, Camera arg1) {
-        Log.d(TAG, "Preview Frame received. Frame size: " + frame.length);
+        byte[] stale;
         synchronized (this) {
-            mFrameChain[mChainIdx].put(0, 0, frame);
-            mCameraFrameReady = true;
+            stale = mPendingFrame;
+            mPendingFrame = frame;
             this.notify();
         }
+        if (stale != null)
+            recycleBuffer(stale);
+    }
+
+    @Override
+    public void takePicture(final PictureCallback callback) {
+        synchronized (this) {
+            if (mCamera == null) {
+                callback.onPictureFailed("Camera is not open");
+                return;
+            }
+            if (mPictureCallback != null) {
+                callback.onPictureFailed("A picture is already being taken");
+                return;
+            }
+            try {
+                mCamera.takePicture(null, null, new Camera.PictureCallback() {
+                    @Override
+                    public void onPictureTaken(byte[] data, Camera camera) {
+                        Camera.Size size;
+                        synchronized (JavaCameraView.this) {
+                            if (mPictureCallback != callback)
+                                return;
+                            mPictureCallback = null;
+                            size = camera.getParameters().getPictureSize();
+                            // Taking the picture stopped the preview, the callback buffers stay queued
+                            camera.startPreview();
+                        }
+                        callback.onPictureTaken(data, size.width, size.height);
+                    }
+                });
+                mPictureCallback = callback;
+            } catch (RuntimeException e) {
+                callback.onPictureFailed("Could not take a picture: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void recycleBuffer(byte[] buffer) {
         if (mCamera != null)
-            mCamera.addCallbackBuffer(mBuffer);
+            mCamera.addCallbackBuffer(buffer);
     }
 
+    /*
+     * Wraps the NV21 buffer of the frame being processed. A Mat cannot wrap a Java array, so the
+     * bytes are copied on first use, and only the Y plane when the consumer asks for gray only.
+     * Asking for rgba after gray then copies only the chroma rows. The bundled natives cannot put
+     * from an array offset, so those rows go through a reused buffer: half a plane copied twice
+     * rather than the whole frame again. Each format is produced at most once per frame, the
+     * returned Mats are reused across frames.
+     */
     private class JavaCameraFrame implements CvCameraViewFrame {
         @Override
         public Mat gray() {
-            return mYuvFrameData.submat(0, mHeight, 0, mWidth);
+            if (!mLumaLoaded) {
+                mYuvFrameData.put(0, 0, mData, mWidth * mHeight);
+                mLumaLoaded = true;
+            }
+            return mGray;
         }
 
         @Override
         public Mat rgba() {
-            Imgproc.cvtColor(mYuvFrameData, mRgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+            if (!mRgbaReady) {
+                if (!mChromaLoaded) {
+                    if (mLumaLoaded) {
+                        System.arraycopy(mData, mWidth * mHeight, mChromaBytes, 0, mChromaBytes.length);
+                        mYuvFrameData.put(mHeight, 0, mChromaBytes);
+                    } else {
+                        mYuvFrameData.put(0, 0, mData);
+                        mLumaLoaded = true;
+                    }
+                    mChromaLoaded = true;
+                }
+                Imgproc.cvtColor(mYuvFrameData, mRgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+                mRgbaReady = true;
+            }
             return mRgba;
         }
 
-        public JavaCameraFrame(Mat Yuv420sp, int width, int height) {
+        public JavaCameraFrame(int width, int height) {
             super();
             mWidth = width;
             mHeight = height;
-            mYuvFrameData = Yuv420sp;
+            mYuvFrameData = new Mat(height + (height/2), width, CvType.CV_8UC1);
+            mGray = mYuvFrameData.submat(0, height, 0, width);
             mRgba = new Mat();
+            mChromaBytes = new byte[width * (height/2)];
+        }
+
+        public void setData(byte[] data) {
+            mData = data;
+            mLumaLoaded = false;
+            mChromaLoaded = false;
+            mRgbaReady = false;
         }
 
         public void release() {
+            mGray.release();
+            mYuvFrameData.release();
             mRgba.release();
         }
 
-        private Mat mYuvFrameData;
-        private Mat mRgba;
-        private int mWidth;
-        private int mHeight;
+        private final Mat mYuvFrameData;
+        private final Mat mGray;
+        private final Mat mRgba;
+        private final byte[] mChromaBytes;
+        private final int mWidth;
+        private final int mHeight;
+        private byte[] mData;
+        private boolean mLumaLoaded;
+        private boolean mChromaLoaded;
+        private boolean mRgbaReady;
     };
 
     private class CameraWorker implements Runnable {
@@ -328,26 +413,25 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         @Override
         public void run() {
             do {
-                boolean hasFrame = false;
+                byte[] frame;
                 synchronized (JavaCameraView.this) {
                     try {
-                        while (!mCameraFrameReady && !mStopThread) {
+                        while (mPendingFrame == null && !mStopThread) {
                             JavaCameraView.this.wait();
                         }
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
-                    if (mCameraFrameReady)
-                    {
-                        mChainIdx = 1 - mChainIdx;
-                        mCameraFrameReady = false;
-                        hasFrame = true;
-                    }
+                    frame = mPendingFrame;
+                    mPendingFrame = null;
                 }
 
-                if (!mStopThread && hasFrame) {
-                    if (!mFrameChain[1 - mChainIdx].empty())
-                        deliverAndDrawFrame(mCameraFrame[1 - mChainIdx]);
+                if (frame != null) {
+                    if (!mStopThread) {
+                        mCameraFrame.setData(frame);
+                        deliverAndDrawFrame(mCameraFrame);
+                    }
+                    recycleBuffer(frame);
                 }
             } while (!mStopThread);
             Log.d(TAG, "Finish processing thread");
@@ -1000,6 +1000,20 @@ public class Mat {
         throw new java.lang.UnsupportedOperationException("Mat data type is not compatible: " + t);
     }
 
+    // Same as put(row, col, data) limited to the first length elements of data
+    public int put(int row, int col, byte[] data, int length) {
+        int t = type();
+        if (data == null || length < 0 || length > data.length || length % CvType.channels(t) != 0)
+            throw new java.lang.UnsupportedOperationException(
+                    "Provided data element number (" + length +
+                            ") should be a multiple of the Mat channels count (" +
+                            CvType.channels(t) + ") within the array");
+        if (CvType.depth(t) == CvType.CV_8U || CvType.depth(t) == CvType.CV_8S) {
+            return nPutB(nativeObj, row, col, length, data);
+        }
+        throw new java.lang.UnsupportedOperationException("Mat data type is not compatible: " + t);
+    }
+
     // javadoc:Mat::get(row,col,data)
     public int get(int row, int col, byte[] data) {
         int t = type();
@@ -0,0 +1,31 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Numbered threads at background priority, so image work never competes with
+ * the UI and JS threads.
+ */
+public class BackgroundThreadFactory implements ThreadFactory {
+
+  private final String namePrefix;
+  private final AtomicInteger count = new AtomicInteger();
+
+  public BackgroundThreadFactory(String namePrefix) {
+    this.namePrefix = namePrefix;
+  }
+
+  @Override
+  public Thread newThread(final Runnable runnable) {
+    return new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        runnable.run();
+      }
+    }, namePrefix + count.incrementAndGet());
+  }
+}
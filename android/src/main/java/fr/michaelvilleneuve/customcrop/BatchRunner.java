@@ -0,0 +1,142 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs the items of a batch on the worker pool with at most maxInFlight of
+ * them queued or running at once, and collects the results in input order.
+ */
+public class BatchRunner {
+
+  private static final String TAG = "BatchRunner";
+
+  public interface Job {
+    WritableMap run(int index);
+  }
+
+  public interface Listener {
+    /**
+     * Called once per item, in completion order, error is null on success.
+     */
+    void onItem(int index, String error, int completed, int total);
+
+    /**
+     * Called once when every item has completed, with one entry per item in
+     * input order. Failed items are maps holding an error key.
+     */
+    void onDone(WritableArray results);
+  }
+
+  private final WorkerPool pool;
+  private final int count;
+  private final int maxInFlight;
+  private final Job job;
+  private final Listener listener;
+  private final WritableMap[] results;
+
+  private final ArrayDeque<Integer> pending = new ArrayDeque<>();
+  private int inFlight;
+  private int completed;
+
+  public BatchRunner(WorkerPool pool, int count, int maxInFlight, Job job, Listener listener) {
+    this.pool = pool;
+    this.count = count;
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.job = job;
+    this.listener = listener;
+    this.results = new WritableMap[count];
+    for (int i = 0; i < count; i++) {
+      pending.add(i);
+    }
+  }
+
+  public void start() {
+    if (count == 0) {
+      listener.onDone(Arguments.createArray());
+      return;
+    }
+    schedule();
+  }
+
+  private void schedule() {
+    while (true) {
+      final int index;
+      synchronized (this) {
+        if (inFlight >= maxInFlight || pending.isEmpty()) {
+          return;
+        }
+        index = pending.poll();
+        inFlight++;
+      }
+
+      boolean accepted = pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          runItem(index);
+        }
+      });
+
+      if (!accepted) {
+        boolean idle;
+        synchronized (this) {
+          inFlight--;
+          idle = inFlight == 0;
+          if (!idle) {
+            // Retry once one of our own items frees a slot
+            pending.addFirst(index);
+          }
+        }
+        if (!idle) {
+          return;
+        }
+        // Nothing of ours will free a slot, fail this item instead of stalling the batch
+        complete(index, null, "Too many pending image operations, try again later");
+      }
+    }
+  }
+
+  private void runItem(int index) {
+    WritableMap result = null;
+    String error = null;
+    try {
+      result = job.run(index);
+    } catch (Throwable e) {
+      // OutOfMemoryError included, onDone must still fire or JS waits forever
+      Log.e(TAG, "Batch item " + index + " failed", e);
+      error = e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+    synchronized (this) {
+      inFlight--;
+    }
+    complete(index, result, error);
+    schedule();
+  }
+
+  private void complete(int index, WritableMap result, String error) {
+    if (result == null) {
+      result = Arguments.createMap();
+      result.putString("error", error);
+    }
+
+    int done;
+    synchronized (this) {
+      results[index] = result;
+      done = ++completed;
+    }
+    listener.onItem(index, error, done, count);
+
+    if (done == count) {
+      WritableArray ordered = Arguments.createArray();
+      for (WritableMap item : results) {
+        ordered.pushMap(item);
+      }
+      listener.onDone(ordered);
+    }
+  }
+}
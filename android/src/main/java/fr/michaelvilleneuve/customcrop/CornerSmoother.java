@@ -0,0 +1,133 @@
+package fr.michaelvilleneuve.customcrop;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.video.KalmanFilter;
+
+/**
+ * Smooths the corners of successive live detections with one constant
+ * velocity Kalman filter per corner, so the outline follows the document
+ * without jittering between detections.
+ */
+public class CornerSmoother {
+
+  private static final int CORNERS = 4;
+  // Variance, in pixels squared, of the detected corner positions
+  private static final double MEASUREMENT_NOISE = 9;
+  // Variance of the position and velocity changes per second the model allows
+  private static final double POSITION_NOISE = 25;
+  private static final double VELOCITY_NOISE = 2500;
+  // Consecutive misses after which the outline is dropped
+  private static final int MAX_MISSES = 3;
+  // A corner jumping further than this fraction of the frame diagonal is a new document
+  private static final double RESET_DISTANCE_RATIO = 0.2;
+
+  private final KalmanFilter[] filters = new KalmanFilter[CORNERS];
+  private final Mat transition = Mat.eye(4, 4, CvType.CV_32F);
+  private final Mat processNoise = Mat.zeros(4, 4, CvType.CV_32F);
+  private final Mat measurement = new Mat(2, 1, CvType.CV_32F);
+  private final float[] state = new float[4];
+
+  private Point[] smoothed;
+  private long lastUpdateMs;
+  private int misses;
+
+  public CornerSmoother() {
+    Mat measurementMatrix = Mat.zeros(2, 4, CvType.CV_32F);
+    measurementMatrix.put(0, 0, 1);
+    measurementMatrix.put(1, 1, 1);
+    Mat measurementNoise = Mat.eye(2, 2, CvType.CV_32F);
+    measurementNoise.put(0, 0, MEASUREMENT_NOISE);
+    measurementNoise.put(1, 1, MEASUREMENT_NOISE);
+
+    for (int i = 0; i < CORNERS; i++) {
+      filters[i] = new KalmanFilter(4, 2, 0, CvType.CV_32F);
+      filters[i].set_measurementMatrix(measurementMatrix);
+      filters[i].set_measurementNoiseCov(measurementNoise);
+    }
+    measurementMatrix.release();
+    measurementNoise.release();
+  }
+
+  /**
+   * Feeds the corners of a detection made at nowMs, null when nothing was
+   * found, and returns the smoothed corners, null when there is no outline.
+   */
+  public Point[] update(Point[] corners, long nowMs, double frameDiagonal) {
+    if (corners == null) {
+      if (++misses >= MAX_MISSES) {
+        smoothed = null;
+      }
+      return smoothed;
+    }
+    misses = 0;
+
+    if (smoothed == null || jumped(corners, frameDiagonal * RESET_DISTANCE_RATIO)) {
+      reset(corners, nowMs);
+      return smoothed;
+    }
+
+    float dt = Math.max(1, nowMs - lastUpdateMs) / 1000f;
+    lastUpdateMs = nowMs;
+    transition.put(0, 2, dt);
+    transition.put(1, 3, dt);
+    processNoise.put(0, 0, POSITION_NOISE * dt);
+    processNoise.put(1, 1, POSITION_NOISE * dt);
+    processNoise.put(2, 2, VELOCITY_NOISE * dt);
+    processNoise.put(3, 3, VELOCITY_NOISE * dt);
+
+    Point[] next = new Point[CORNERS];
+    for (int i = 0; i < CORNERS; i++) {
+      KalmanFilter filter = filters[i];
+      filter.set_transitionMatrix(transition);
+      filter.set_processNoiseCov(processNoise);
+      filter.predict().release();
+      measurement.put(0, 0, corners[i].x, corners[i].y);
+      Mat corrected = filter.correct(measurement);
+      corrected.get(0, 0, state);
+      corrected.release();
+      next[i] = new Point(state[0], state[1]);
+    }
+    // A new array, readers on other threads may still hold the previous one
+    smoothed = next;
+    return smoothed;
+  }
+
+  public void reset() {
+    smoothed = null;
+    misses = 0;
+  }
+
+  private void reset(Point[] corners, long nowMs) {
+    Point[] next = new Point[CORNERS];
+    for (int i = 0; i < CORNERS; i++) {
+      // The filters keep the data of these Mats and update it in place, each gets its own
+      Mat statePost = new Mat(4, 1, CvType.CV_32F);
+      statePost.put(0, 0, corners[i].x, corners[i].y, 0, 0);
+      Mat errorCov = Mat.eye(4, 4, CvType.CV_32F);
+      filters[i].set_statePost(statePost);
+      filters[i].set_errorCovPost(errorCov);
+      statePost.release();
+      errorCov.release();
+      next[i] = new Point(corners[i].x, corners[i].y);
+    }
+    lastUpdateMs = nowMs;
+    smoothed = next;
+  }
+
+  private boolean jumped(Point[] corners, double maxDistance) {
+    for (int i = 0; i < CORNERS; i++) {
+      if (Math.hypot(corners[i].x - smoothed[i].x, corners[i].y - smoothed[i].y) > maxDistance) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void release() {
+    transition.release();
+    processNoise.release();
+    measurement.release();
+  }
+}
@@ -0,0 +1,138 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.graphics.Bitmap;
+
+import com.facebook.react.bridge.ReadableMap;
+
+/**
+ * Options accepted by cropWithOptions, unset keys keep the defaults.
+ */
+public class CropOptions {
+
+  public static final String OUTPUT_FILE = "file";
+  public static final String OUTPUT_BASE64 = "base64";
+  public static final String FORMAT_JPEG = "jpeg";
+  public static final String FORMAT_PNG = "png";
+  public static final String FORMAT_WEBP = "webp";
+
+  // Write the encoded image to the cache directory, or return it as a Base64 string
+  public String output = OUTPUT_FILE;
+  public String format = FORMAT_JPEG;
+  // Ignored by PNG
+  public int quality = 70;
+  // Bounds of the output image, 0 leaves the dimension unbounded
+  public int maxWidth;
+  public int maxHeight;
+  // Lossy formats lower the quality until the encoded image fits, 0 disables the budget
+  public int maxBytes;
+  // Warp in strips decoded one at a time instead of decoding the whole source, null picks by image size
+  public Boolean tiled;
+  // Output rows warped per strip in tiled mode
+  public int stripHeight = TiledWarp.DEFAULT_STRIP_HEIGHT;
+  // Row bands warped concurrently, 0 uses every core
+  public int parallelism;
+  // Adds the per stage timings to the result, see StageTimer
+  public boolean timings;
+
+  // Sources above this many pixels are warped in strips unless tiled is set
+  private static final long TILED_THRESHOLD_PIXELS = 24000000L;
+
+  public static CropOptions fromMap(ReadableMap map) {
+    CropOptions options = new CropOptions();
+    if (map == null) {
+      return options;
+    }
+    if (map.hasKey("output")) {
+      options.output = map.getString("output");
+      if (!OUTPUT_FILE.equals(options.output) && !OUTPUT_BASE64.equals(options.output)) {
+        throw new IllegalArgumentException("Unknown crop output: " + options.output);
+      }
+    }
+    if (map.hasKey("format")) {
+      options.format = map.getString("format");
+      if (!FORMAT_JPEG.equals(options.format) && !FORMAT_PNG.equals(options.format) && !FORMAT_WEBP.equals(options.format)) {
+        throw new IllegalArgumentException("Unknown crop format: " + options.format);
+      }
+    }
+    if (map.hasKey("quality")) {
+      options.quality = Math.max(0, Math.min(100, map.getInt("quality")));
+    }
+    if (map.hasKey("maxWidth")) {
+      options.maxWidth = Math.max(0, map.getInt("maxWidth"));
+    }
+    if (map.hasKey("maxHeight")) {
+      options.maxHeight = Math.max(0, map.getInt("maxHeight"));
+    }
+    if (map.hasKey("maxBytes")) {
+      options.maxBytes = Math.max(0, map.getInt("maxBytes"));
+    }
+    if (map.hasKey("parallelism")) {
+      options.parallelism = Math.max(0, map.getInt("parallelism"));
+    }
+    if (map.hasKey("tiled")) {
+      options.tiled = map.getBoolean("tiled");
+    }
+    if (map.hasKey("stripHeight")) {
+      options.stripHeight = Math.max(16, map.getInt("stripHeight"));
+    }
+    if (map.hasKey("timings")) {
+      options.timings = map.getBoolean("timings");
+    }
+    return options;
+  }
+
+  /**
+   * Options matching the original crop method, which always returned Base64.
+   */
+  public static CropOptions legacy() {
+    CropOptions options = new CropOptions();
+    options.output = OUTPUT_BASE64;
+    return options;
+  }
+
+  public boolean writesFile() {
+    return OUTPUT_FILE.equals(output);
+  }
+
+  public boolean isLossy() {
+    return !FORMAT_PNG.equals(format);
+  }
+
+  public Bitmap.CompressFormat compressFormat() {
+    if (FORMAT_PNG.equals(format)) {
+      return Bitmap.CompressFormat.PNG;
+    }
+    if (FORMAT_WEBP.equals(format)) {
+      return Bitmap.CompressFormat.WEBP;
+    }
+    return Bitmap.CompressFormat.JPEG;
+  }
+
+  /**
+   * Whether a source of width x height decoded pixels should be warped in strips.
+   */
+  public boolean useTiled(long width, long height) {
+    if (tiled != null) {
+      return tiled;
+    }
+    return width * height > TILED_THRESHOLD_PIXELS;
+  }
+
+  public String extension() {
+    return FORMAT_JPEG.equals(format) ? "jpg" : format;
+  }
+
+  /**
+   * Scale applied to a width x height output so it fits maxWidth and maxHeight, never upscales.
+   */
+  public double outputScale(double width, double height) {
+    double scale = 1.0;
+    if (maxWidth > 0 && width > maxWidth) {
+      scale = Math.min(scale, maxWidth / width);
+    }
+    if (maxHeight > 0 && height > maxHeight) {
+      scale = Math.min(scale, maxHeight / height);
+    }
+    return scale;
+  }
+}
@@ -0,0 +1,161 @@
+package fr.michaelvilleneuve.customcrop;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Range;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of decoded source images, bounded in bytes, so
+ * findDocument followed by crop decodes the image once.
+ *
+ * Each image is cached once, at the largest scale decoded so far. A lookup at
+ * a smaller scale is answered by shrinking the cached decode, which is much
+ * cheaper than decoding the image again.
+ *
+ * Callers get their own Mat header over the cached pixels, OpenCV counts the
+ * references to the pixel data, so a caller releasing its header or the cache
+ * evicting the entry never frees pixels still in use. The pixels are shared:
+ * callers must only read them.
+ */
+public class DecodedImageCache {
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long maxBytes;
+  private long bytes;
+  private long hits;
+  private long misses;
+
+  private static class Entry {
+    final Mat mat;
+    // 1/sampleSize of the source resolution
+    final int sampleSize;
+
+    Entry(Mat mat, int sampleSize) {
+      this.mat = mat;
+      this.sampleSize = sampleSize;
+    }
+  }
+
+  public DecodedImageCache(long maxBytes) {
+    this.maxBytes = Math.max(0, maxBytes);
+  }
+
+  /**
+   * The image of identity, see ImageLoader.identity, at 1/sampleSize, or null
+   * when no decode at least that large is cached. A header over the cached
+   * pixels when the scales match, a shrunk copy otherwise, owned by the caller
+   * either way.
+   */
+  public Mat get(String identity, int sampleSize) {
+    Mat cached;
+    int factor;
+    synchronized (this) {
+      Entry entry = identity != null ? entries.get(identity) : null;
+      if (entry == null || sampleSize % entry.sampleSize != 0) {
+        misses++;
+        return null;
+      }
+      hits++;
+      cached = new Mat(entry.mat, Range.all());
+      factor = sampleSize / entry.sampleSize;
+    }
+    if (factor == 1) {
+      return cached;
+    }
+    // Out of the lock, the header keeps the pixels alive even if the entry is evicted meanwhile
+    Mat scaled = shrink(cached, factor);
+    cached.release();
+    return scaled;
+  }
+
+  /**
+   * New image of src reduced by factor, rounded up like the reduced JPEG decodes.
+   */
+  public static Mat shrink(Mat src, int factor) {
+    Mat scaled = new Mat();
+    Size size = new Size((src.cols() + factor - 1) / factor, (src.rows() + factor - 1) / factor);
+    Imgproc.resize(src, scaled, size, 0, 0, Imgproc.INTER_AREA);
+    return scaled;
+  }
+
+  /**
+   * Caches a header over mat, the image of identity at 1/sampleSize, which
+   * stays owned by the caller. A larger decode already cached is kept, and
+   * images larger than the whole budget are not cached.
+   */
+  public synchronized void put(String identity, int sampleSize, Mat mat) {
+    long size = sizeOf(mat);
+    if (identity == null || size > maxBytes) {
+      return;
+    }
+    Entry previous = entries.get(identity);
+    if (previous != null && previous.sampleSize <= sampleSize) {
+      return;
+    }
+    entries.put(identity, new Entry(new Mat(mat, Range.all()), sampleSize));
+    if (previous != null) {
+      bytes -= sizeOf(previous.mat);
+      previous.mat.release();
+    }
+    bytes += size;
+    trimTo(maxBytes);
+  }
+
+  /**
+   * True when an image of the given size fits the budget, so decoding more
+   * than the caller needs right now can pay off later.
+   */
+  public synchronized boolean canHold(long imageBytes) {
+    return imageBytes <= maxBytes;
+  }
+
+  /**
+   * 0 disables the cache and drops every entry.
+   */
+  public synchronized void setMaxBytes(long maxBytes) {
+    this.maxBytes = Math.max(0, maxBytes);
+    trimTo(this.maxBytes);
+  }
+
+  public synchronized void clear() {
+    trimTo(0);
+  }
+
+  /**
+   * Evicts the least recently used images until at most limit bytes are cached.
+   */
+  public synchronized void trimTo(long limit) {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (bytes > limit && it.hasNext()) {
+      Mat eldest = it.next().getValue().mat;
+      bytes -= sizeOf(eldest);
+      eldest.release();
+      it.remove();
+    }
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  private static long sizeOf(Mat mat) {
+    return mat.total() * mat.elemSize();
+  }
+}
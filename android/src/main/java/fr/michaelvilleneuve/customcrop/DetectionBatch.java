@@ -0,0 +1,214 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import fr.michaelvilleneuve.helpers.ScannedDocument;
+
+import org.opencv.core.Mat;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Detects documents in a list of images. Runs as a single task on the worker
+ * pool and decodes the next image on another worker while text recognition
+ * runs on the current one. One ImageProcessor, and so one set of scratch
+ * buffers, serves the whole batch.
+ */
+public class DetectionBatch implements Runnable {
+
+  private static final String TAG = "DetectionBatch";
+
+  public interface Listener {
+    /**
+     * Called for every image in order, points is null when no document was
+     * found and error is null on success.
+     */
+    void onResult(int index, WritableMap points, String error);
+
+    /**
+     * Called once with the corners of every image in input order, null
+     * entries where no document was found.
+     */
+    void onDone(WritableArray results);
+  }
+
+  private final ImageLoader loader;
+  private final ImageProcessor processor;
+  private final DetectionOptions options;
+  private final WorkerPool pool;
+  private final List<String> uris;
+  private final Listener listener;
+
+  public DetectionBatch(ImageLoader loader, ImageProcessor processor, DetectionOptions options, WorkerPool pool,
+      List<String> uris, Listener listener) {
+    this.loader = loader;
+    this.processor = processor;
+    this.options = options;
+    this.pool = pool;
+    this.uris = uris;
+    this.listener = listener;
+  }
+
+  @Override
+  public void run() {
+    ScannedDocument[] documents = new ScannedDocument[uris.size()];
+    Prefetch next = prefetch(0);
+    try {
+      for (int i = 0; i < uris.size() && !Thread.currentThread().isInterrupted(); i++) {
+        Prefetch pending = next;
+        next = null;
+        Decoded current = null;
+        String error = null;
+        try {
+          current = await(pending, i);
+        } catch (ExecutionException e) {
+          error = describe(e.getCause() != null ? e.getCause() : e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          error = describe(e);
+        } catch (Throwable e) {
+          // OutOfMemoryError included, large images are what fails and the batch must still complete
+          error = describe(e);
+        }
+
+        // Overlap decoding the next image with recognition on this one
+        next = prefetch(i + 1);
+
+        if (current != null) {
+          try {
+            documents[i] = processor.detect(current.mat, current.sampleSize, current.regions);
+          } catch (ExecutionException e) {
+            error = describe(e.getCause() != null ? e.getCause() : e);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = describe(e);
+          } catch (Throwable e) {
+            error = describe(e);
+          } finally {
+            current.release();
+          }
+        }
+
+        if (error != null) {
+          Log.w(TAG, "Detection failed for " + uris.get(i) + ": " + error);
+        }
+        listener.onResult(i, documents[i] != null ? documents[i].pointsAsHash() : null, error);
+      }
+    } finally {
+      discard(next);
+      processor.release();
+    }
+
+    WritableArray results = Arguments.createArray();
+    for (ScannedDocument document : documents) {
+      WritableMap points = document != null ? document.pointsAsHash() : null;
+      if (points != null) {
+        results.pushMap(points);
+      } else {
+        results.pushNull();
+      }
+    }
+    listener.onDone(results);
+  }
+
+  private Prefetch prefetch(int index) {
+    if (index >= uris.size()) {
+      return null;
+    }
+    Prefetch prefetch = new Prefetch(index);
+    // A saturated pool just means the image is decoded inline when it is needed
+    prefetch.future = pool.submit(prefetch);
+    return prefetch;
+  }
+
+  private Decoded await(Prefetch pending, int index) throws ExecutionException, InterruptedException {
+    // Decode inline when the prefetch never started, it may be queued behind this very task
+    if (pending == null || pending.claim()) {
+      return decode(index);
+    }
+    return pending.future.get();
+  }
+
+  private Decoded decode(int index) {
+    String uri = uris.get(index);
+    int sampleSize = loader.sampleSizeForDetection(uri, options);
+    Mat mat = loader.load(uri, sampleSize);
+    try {
+      return new Decoded(mat, sampleSize, loader.openRegions(uri, sampleSize, options));
+    } catch (RuntimeException e) {
+      mat.release();
+      throw e;
+    }
+  }
+
+  private static void discard(Prefetch pending) {
+    if (pending == null || pending.claim()) {
+      return;
+    }
+    // The decode started, wait for it so its image is released rather than left to the finalizer
+    try {
+      Decoded decoded = pending.future.get();
+      if (decoded != null) {
+        decoded.release();
+      }
+    } catch (Exception ignored) {
+    }
+  }
+
+  private static String describe(Throwable e) {
+    return e.getMessage() != null ? e.getMessage() : e.toString();
+  }
+
+  /**
+   * Decode of one image ahead of its turn. Whoever claims it first decodes the
+   * image, the worker running the prefetch or the batch when it needs the
+   * image before the prefetch started, so an image is never decoded twice.
+   */
+  private class Prefetch implements Callable<Decoded> {
+    final int index;
+    final AtomicBoolean claimed = new AtomicBoolean();
+    // Null when the pool rejected the prefetch, it then never runs
+    Future<Decoded> future;
+
+    Prefetch(int index) {
+      this.index = index;
+    }
+
+    boolean claim() {
+      return claimed.compareAndSet(false, true);
+    }
+
+    @Override
+    public Decoded call() {
+      return claim() ? decode(index) : null;
+    }
+  }
+
+  private static class Decoded {
+    final Mat mat;
+    final int sampleSize;
+    // Null when the corners are not refined or mat is full resolution
+    final SourceRegions regions;
+
+    Decoded(Mat mat, int sampleSize, SourceRegions regions) {
+      this.mat = mat;
+      this.sampleSize = sampleSize;
+      this.regions = regions;
+    }
+
+    void release() {
+      mat.release();
+      if (regions != null) {
+        regions.recycle();
+      }
+    }
+  }
+}
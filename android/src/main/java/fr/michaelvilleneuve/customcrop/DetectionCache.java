@@ -0,0 +1,94 @@
+package fr.michaelvilleneuve.customcrop;
+
+import com.facebook.react.bridge.WritableMap;
+
+import fr.michaelvilleneuve.helpers.ScannedDocument;
+
+import org.opencv.core.Point;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of detected corners, keyed by image identity and
+ * the options that affect the result. Images where nothing was found are
+ * cached too, failed detections are not.
+ */
+public class DetectionCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 32;
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > maxEntries;
+    }
+  };
+  private int maxEntries = DEFAULT_MAX_ENTRIES;
+  private long hits;
+  private long misses;
+
+  public static class Entry {
+    // In source pixels, in the order of ScannedDocument.originalPoints, null when nothing was found
+    private final Point[] points;
+
+    Entry(Point[] points) {
+      this.points = points != null ? points.clone() : null;
+    }
+
+    /**
+     * A fresh map on every call, maps handed to a callback cannot be reused.
+     */
+    public WritableMap pointsAsHash() {
+      return ScannedDocument.pointsAsHash(points);
+    }
+  }
+
+  /**
+   * Key for identity, see ImageLoader.identity, or null when the image cannot
+   * be identified and must not be cached.
+   */
+  public static String key(String identity, DetectionOptions options) {
+    if (identity == null) {
+      return null;
+    }
+    return identity + "|" + options.detector + "|" + options.maxDetectionSize + "|" + options.refineCorners;
+  }
+
+  public synchronized Entry get(String key) {
+    Entry entry = key != null && maxEntries > 0 ? entries.get(key) : null;
+    if (entry != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return entry;
+  }
+
+  public synchronized void put(String key, Point[] points) {
+    if (key != null && maxEntries > 0) {
+      entries.put(key, new Entry(points));
+    }
+  }
+
+  /**
+   * 0 disables the cache and drops every entry.
+   */
+  public synchronized void setMaxEntries(int maxEntries) {
+    this.maxEntries = Math.max(0, maxEntries);
+    while (entries.size() > this.maxEntries) {
+      entries.remove(entries.keySet().iterator().next());
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public synchronized void putStats(WritableMap map) {
+    map.putDouble("cacheHits", hits);
+    map.putDouble("cacheMisses", misses);
+    map.putInt("cacheSize", entries.size());
+    map.putInt("cacheMaxSize", maxEntries);
+  }
+}
@@ -0,0 +1,52 @@
+package fr.michaelvilleneuve.customcrop;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Detection latency split between the first call on a fresh recognizer, which
+ * pays for loading the model, and the warm calls that follow.
+ */
+public class DetectionMetrics {
+
+  private boolean coldPending;
+  private long coldLatencyMs = -1;
+  private int warmCount;
+  private long warmTotalMs;
+  private long warmMinMs = Long.MAX_VALUE;
+  private long warmMaxMs;
+
+  public synchronized void onRecognizerCreated() {
+    coldPending = true;
+  }
+
+  /**
+   * Returns true for the single detection that runs on a freshly created recognizer.
+   */
+  public synchronized boolean startDetection() {
+    boolean cold = coldPending;
+    coldPending = false;
+    return cold;
+  }
+
+  public synchronized void record(long latencyMs, boolean cold) {
+    if (cold) {
+      coldLatencyMs = latencyMs;
+      return;
+    }
+    warmCount++;
+    warmTotalMs += latencyMs;
+    warmMinMs = Math.min(warmMinMs, latencyMs);
+    warmMaxMs = Math.max(warmMaxMs, latencyMs);
+  }
+
+  public synchronized WritableMap toMap() {
+    WritableMap map = Arguments.createMap();
+    map.putDouble("coldLatencyMs", coldLatencyMs);
+    map.putInt("warmCount", warmCount);
+    map.putDouble("warmAverageMs", warmCount == 0 ? -1 : (double) warmTotalMs / warmCount);
+    map.putDouble("warmMinMs", warmCount == 0 ? -1 : warmMinMs);
+    map.putDouble("warmMaxMs", warmCount == 0 ? -1 : warmMaxMs);
+    return map;
+  }
+}
@@ -0,0 +1,54 @@
+package fr.michaelvilleneuve.customcrop;
+
+import com.facebook.react.bridge.ReadableMap;
+
+/**
+ * Options accepted by findDocumentWithOptions, unset keys keep the defaults.
+ */
+public class DetectionOptions {
+
+  public static final int DEFAULT_MAX_DETECTION_SIZE = 1024;
+
+  // Long edge of the image handed to the detector, 0 detects at full resolution
+  public int maxDetectionSize = DEFAULT_MAX_DETECTION_SIZE;
+  // Snap the detected corners on the full resolution image
+  public boolean refineCorners = true;
+  // QuadDetector.TEXT for ML Kit text blocks, QuadDetector.CONTOUR for OpenCV edge contours
+  public String detector = QuadDetector.TEXT;
+  // Adds the per stage timings to the result, see StageTimer
+  public boolean timings;
+
+  public static DetectionOptions fromMap(ReadableMap map) {
+    DetectionOptions options = new DetectionOptions();
+    if (map == null) {
+      return options;
+    }
+    if (map.hasKey("maxDetectionSize")) {
+      options.maxDetectionSize = Math.max(0, map.getInt("maxDetectionSize"));
+    }
+    if (map.hasKey("refineCorners")) {
+      options.refineCorners = map.getBoolean("refineCorners");
+    }
+    if (map.hasKey("detector")) {
+      options.detector = map.getString("detector");
+      if (!QuadDetector.TEXT.equals(options.detector) && !QuadDetector.CONTOUR.equals(options.detector)) {
+        throw new IllegalArgumentException("Unknown detector: " + options.detector);
+      }
+    }
+    if (map.hasKey("timings")) {
+      options.timings = map.getBoolean("timings");
+    }
+    return options;
+  }
+
+  /**
+   * Scale factor from the source image to the detection level, never upscales.
+   */
+  public double detectionScale(int width, int height) {
+    int longEdge = Math.max(width, height);
+    if (maxDetectionSize <= 0 || longEdge <= maxDetectionSize) {
+      return 1.0;
+    }
+    return (double) maxDetectionSize / longEdge;
+  }
+}
@@ -0,0 +1,63 @@
+package fr.michaelvilleneuve.customcrop;
+
+/**
+ * Decides which live frames are handed to the detector. At most one
+ * detection runs at a time and frames arriving meanwhile are dropped rather
+ * than queued, so a detection always starts on the freshest frame. Detections
+ * are also spaced by the measured latency so they use at most maxDutyCycle of
+ * one core.
+ */
+public class DetectionScheduler {
+
+  public static final double DEFAULT_MAX_DUTY_CYCLE = 0.5;
+  // Weight of the newest latency in the running average
+  private static final double LATENCY_SMOOTHING = 0.3;
+
+  private long minIntervalMs;
+  private double maxDutyCycle = DEFAULT_MAX_DUTY_CYCLE;
+  private double averageLatencyMs;
+  private boolean busy;
+  private long lastStartMs = Long.MIN_VALUE / 2;
+
+  public synchronized void setMinIntervalMs(long minIntervalMs) {
+    this.minIntervalMs = Math.max(0, minIntervalMs);
+  }
+
+  /**
+   * Share of one core, between 0 exclusive and 1, detections may take.
+   */
+  public synchronized void setMaxDutyCycle(double maxDutyCycle) {
+    this.maxDutyCycle = Math.max(0.05, Math.min(1.0, maxDutyCycle));
+  }
+
+  /**
+   * True when the frame offered at nowMs should be detected, the caller must
+   * then call finish once the detection completes.
+   */
+  public synchronized boolean tryStart(long nowMs) {
+    if (busy || nowMs - lastStartMs < intervalMs()) {
+      return false;
+    }
+    busy = true;
+    lastStartMs = nowMs;
+    return true;
+  }
+
+  public synchronized void finish(long latencyMs) {
+    busy = false;
+    averageLatencyMs = averageLatencyMs == 0
+        ? latencyMs
+        : averageLatencyMs + LATENCY_SMOOTHING * (latencyMs - averageLatencyMs);
+  }
+
+  /**
+   * Current time between the start of two detections.
+   */
+  public synchronized long intervalMs() {
+    return Math.max(minIntervalMs, (long) (averageLatencyMs / maxDutyCycle));
+  }
+
+  public synchronized double getAverageLatencyMs() {
+    return averageLatencyMs;
+  }
+}
@@ -0,0 +1,242 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Base64;
+import android.util.Log;
+
+import com.facebook.react.bridge.WritableMap;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes cropped images according to CropOptions, either to a cache file or
+ * to a Base64 string, and fills the result map sent back to JS.
+ *
+ * JPEG and PNG are encoded by OpenCV straight from the warped BGR Mat. WebP
+ * goes through an ARGB Bitmap, the only encoder guaranteed on every device.
+ * EncodeBenchmark compares the BGR path with the Bitmap one crop used before.
+ */
+public class ImageEncoder {
+
+  private static final String TAG = "ImageEncoder";
+  private static final int MIN_BUDGET_QUALITY = 10;
+  private static final int BUDGET_SEARCH_STEPS = 5;
+
+  private final CropOptions options;
+  private final OutputFiles files;
+
+  public ImageEncoder(CropOptions options, OutputFiles files) {
+    this.options = options;
+    this.files = files;
+  }
+
+  /**
+   * Encodes a 3 channel BGR image. Writing the file counts as encoding, the
+   * Base64 string and the result map as serialization.
+   */
+  public void encode(Mat bgr, WritableMap result, StageTimer timer) {
+    if (CropOptions.FORMAT_WEBP.equals(options.format)) {
+      Bitmap bitmap = toBitmap(bgr);
+      timer.lap(StageTimer.CONVERT);
+      encode(new BitmapSource(bitmap), bgr.cols(), bgr.rows(), result, timer);
+      bitmap.recycle();
+    } else {
+      encode(new MatSource(bgr), bgr.cols(), bgr.rows(), result, timer);
+    }
+  }
+
+  private void encode(Source source, int width, int height, WritableMap result, StageTimer timer) {
+    if (options.maxBytes > 0 && options.isLossy()) {
+      byte[] bytes = encodeWithinBudget(source);
+      if (options.writesFile()) {
+        File file = writeToCache(bytes);
+        timer.lap(StageTimer.ENCODE);
+        putFile(file, width, height, result);
+      } else {
+        timer.lap(StageTimer.ENCODE);
+        result.putString("image", Base64.encodeToString(bytes, Base64.DEFAULT));
+      }
+    } else if (options.writesFile()) {
+      File file = newCacheFile();
+      source.write(file, options.quality);
+      timer.lap(StageTimer.ENCODE);
+      putFile(file, width, height, result);
+    } else {
+      byte[] bytes = source.encode(options.quality);
+      timer.lap(StageTimer.ENCODE);
+      result.putString("image", Base64.encodeToString(bytes, Base64.DEFAULT));
+    }
+    timer.lap(StageTimer.SERIALIZE);
+  }
+
+  /**
+   * Binary search for the highest quality that fits maxBytes, falls back to
+   * the lowest quality tried when nothing fits.
+   */
+  private byte[] encodeWithinBudget(Source source) {
+    byte[] bytes = source.encode(options.quality);
+    if (bytes.length <= options.maxBytes) {
+      return bytes;
+    }
+
+    int low = MIN_BUDGET_QUALITY;
+    int high = options.quality - 1;
+    byte[] best = null;
+    for (int step = 0; step < BUDGET_SEARCH_STEPS && low <= high; step++) {
+      int quality = (low + high) / 2;
+      bytes = source.encode(quality);
+      if (bytes.length <= options.maxBytes) {
+        best = bytes;
+        low = quality + 1;
+      } else {
+        high = quality - 1;
+      }
+    }
+
+    if (best == null) {
+      best = source.encode(MIN_BUDGET_QUALITY);
+      Log.w(TAG, "Could not fit " + options.maxBytes + " bytes, encoded " + best.length);
+    }
+    return best;
+  }
+
+  private static Bitmap toBitmap(Mat bgr) {
+    // matToBitmap copies an RGBA Mat as is, a single conversion covers the swizzle and the alpha channel
+    Mat rgba = new Mat();
+    Imgproc.cvtColor(bgr, rgba, Imgproc.COLOR_BGR2RGBA);
+    Bitmap bitmap = Bitmap.createBitmap(rgba.cols(), rgba.rows(), Bitmap.Config.ARGB_8888);
+    Utils.matToBitmap(rgba, bitmap);
+    rgba.release();
+    return bitmap;
+  }
+
+  private void putFile(File file, int width, int height, WritableMap result) {
+    result.putString("uri", Uri.fromFile(file).toString());
+    result.putInt("width", width);
+    result.putInt("height", height);
+    result.putDouble("size", file.length());
+  }
+
+  private File newCacheFile() {
+    return files.newFile("crop", options.extension());
+  }
+
+  private File writeToCache(byte[] bytes) {
+    File file = newCacheFile();
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(file);
+      out.write(bytes);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write cropped image", e);
+    } finally {
+      close(out, file);
+    }
+    return file;
+  }
+
+  private static void close(OutputStream out, File file) {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Could not close " + file, e);
+      }
+    }
+  }
+
+  private interface Source {
+    byte[] encode(int quality);
+
+    void write(File file, int quality);
+  }
+
+  private class MatSource implements Source {
+    private final Mat bgr;
+
+    MatSource(Mat bgr) {
+      this.bgr = bgr;
+    }
+
+    @Override
+    public byte[] encode(int quality) {
+      MatOfByte buffer = new MatOfByte();
+      MatOfInt params = params(quality);
+      try {
+        if (!Imgcodecs.imencode("." + options.extension(), bgr, buffer, params)) {
+          throw new IllegalStateException("Could not encode cropped image");
+        }
+        return buffer.toArray();
+      } finally {
+        params.release();
+        buffer.release();
+      }
+    }
+
+    @Override
+    public void write(File file, int quality) {
+      MatOfInt params = params(quality);
+      try {
+        if (!Imgcodecs.imwrite(file.getAbsolutePath(), bgr, params)) {
+          throw new IllegalStateException("Could not write cropped image");
+        }
+      } finally {
+        params.release();
+      }
+    }
+
+    private MatOfInt params(int quality) {
+      if (CropOptions.FORMAT_JPEG.equals(options.format)) {
+        return new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, quality);
+      }
+      return new MatOfInt();
+    }
+  }
+
+  private class BitmapSource implements Source {
+    private final Bitmap bitmap;
+
+    BitmapSource(Bitmap bitmap) {
+      this.bitmap = bitmap;
+    }
+
+    @Override
+    public byte[] encode(int quality) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      compress(quality, out);
+      return out.toByteArray();
+    }
+
+    @Override
+    public void write(File file, int quality) {
+      OutputStream out = null;
+      try {
+        out = new BufferedOutputStream(new FileOutputStream(file));
+        compress(quality, out);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not write cropped image", e);
+      } finally {
+        close(out, file);
+      }
+    }
+
+    private void compress(int quality, OutputStream out) {
+      if (!bitmap.compress(options.compressFormat(), quality, out)) {
+        throw new IllegalStateException("Could not encode cropped image");
+      }
+    }
+  }
+}
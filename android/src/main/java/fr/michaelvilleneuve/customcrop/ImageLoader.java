@@ -0,0 +1,341 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+
+import fr.michaelvilleneuve.helpers.Utils;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes images for crop and findDocument as BGR Mats. Reads the bounds
+ * first so callers can decode at 1/2, 1/4 or 1/8 scale when they do not need
+ * every pixel, and reads content:// URIs through the content resolver.
+ */
+public class ImageLoader {
+
+  private static final int MAX_SAMPLE_SIZE = 8;
+  // DocumentsContract.Document.COLUMN_LAST_MODIFIED, the class needs API 19
+  private static final String LAST_MODIFIED_COLUMN = "last_modified";
+
+  private final Context context;
+  private final DecodedImageCache cache;
+
+  /**
+   * Loads through cache when it is not null, the Mats returned by load then
+   * share pixels with the cache and must only be read.
+   */
+  public ImageLoader(Context context, DecodedImageCache cache) {
+    this.context = context;
+    this.cache = cache;
+  }
+
+  /**
+   * Largest supported sample size that keeps at least scale of the source resolution.
+   */
+  public static int sampleSizeForScale(double scale) {
+    if (scale <= 0) {
+      return 1;
+    }
+    return floorSampleSize((int) Math.floor(1.0 / scale));
+  }
+
+  /**
+   * Largest supported sample size that keeps the long edge at or above minLongEdge.
+   */
+  public int sampleSizeForLongEdge(String uri, int minLongEdge) {
+    if (minLongEdge <= 0) {
+      return 1;
+    }
+    BitmapFactory.Options bounds = readBounds(uri);
+    // Work on (long, short) edges so EXIF rotation does not matter
+    int longEdge = Math.max(bounds.outWidth, bounds.outHeight);
+    int shortEdge = Math.min(bounds.outWidth, bounds.outHeight);
+    bounds.outWidth = longEdge;
+    bounds.outHeight = shortEdge;
+    int reqShortEdge = Math.max(1, (int) ((long) minLongEdge * shortEdge / longEdge));
+
+    int sampleSize = floorSampleSize(Utils.calculateInSampleSize(bounds, minLongEdge, reqShortEdge));
+    while (sampleSize > 1 && longEdge / sampleSize < minLongEdge) {
+      sampleSize /= 2;
+    }
+    return sampleSize;
+  }
+
+  /**
+   * Decodes no larger than the detection level. Corner refinement then reads
+   * full resolution windows through openRegions, which ignores the EXIF
+   * orientation, so rotated images are decoded at full resolution instead.
+   */
+  public int sampleSizeForDetection(String uri, DetectionOptions options) {
+    if (options.refineCorners && !hasNormalOrientation(uri)) {
+      return 1;
+    }
+    return sampleSizeForLongEdge(uri, options.maxDetectionSize);
+  }
+
+  /**
+   * Full resolution windows for refining the corners detected on a decode at
+   * sampleSize, or null when refinement is off or the decode is already full
+   * resolution. The caller recycles them.
+   */
+  public SourceRegions openRegions(String uri, int sampleSize, DetectionOptions options) {
+    if (!options.refineCorners || sampleSize == 1) {
+      return null;
+    }
+    return new SourceRegions(openRegionDecoder(uri));
+  }
+
+  public BitmapFactory.Options readBounds(String uri) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    InputStream in = open(uri);
+    try {
+      BitmapFactory.decodeStream(in, null, options);
+    } finally {
+      closeQuietly(in);
+    }
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      throw new IllegalArgumentException("Could not read image bounds of " + uri);
+    }
+    return options;
+  }
+
+  /**
+   * Decodes the image as a 3 channel BGR Mat, reduced by sampleSize (1, 2, 4 or 8).
+   */
+  public Mat load(String uri, int sampleSize) {
+    if (cache == null) {
+      return decode(uri, sampleSize);
+    }
+    String identity = identity(uri);
+    Mat mat = cache.get(identity, sampleSize);
+    if (mat == null) {
+      mat = decode(uri, sampleSize);
+      cache.put(identity, sampleSize, mat);
+    }
+    return mat;
+  }
+
+  /**
+   * Same as load, but decodes the whole image into the cache when it fits, so
+   * the crop that usually follows findDocument finds its source there. Not for
+   * batches, whose images evict each other before they are cropped.
+   */
+  public Mat loadKeepingFullSize(String uri, int sampleSize) {
+    String identity = cache != null && sampleSize > 1 ? identity(uri) : null;
+    if (identity == null) {
+      return load(uri, sampleSize);
+    }
+    BitmapFactory.Options bounds = readBounds(uri);
+    if (!cache.canHold((long) bounds.outWidth * bounds.outHeight * 3)) {
+      return load(uri, sampleSize);
+    }
+    Mat mat = cache.get(identity, sampleSize);
+    if (mat != null) {
+      return mat;
+    }
+    Mat full = decode(uri, 1);
+    try {
+      cache.put(identity, 1, full);
+      return DecodedImageCache.shrink(full, sampleSize);
+    } finally {
+      full.release();
+    }
+  }
+
+  private Mat decode(String uri, int sampleSize) {
+    int flags = readFlags(sampleSize);
+    Mat mat;
+    String path = localPath(uri);
+    if (path != null) {
+      mat = Imgcodecs.imread(path, flags);
+    } else {
+      MatOfByte encoded = new MatOfByte(readAll(uri));
+      mat = Imgcodecs.imdecode(encoded, flags);
+      encoded.release();
+    }
+    if (mat.empty()) {
+      mat.release();
+      throw new IllegalArgumentException("Could not decode " + uri);
+    }
+    return mat;
+  }
+
+  /**
+   * Region decoder over the encoded image, for reading it a strip at a time.
+   * Unlike imread it ignores the EXIF orientation, see hasNormalOrientation.
+   */
+  public BitmapRegionDecoder openRegionDecoder(String uri) {
+    InputStream in = open(uri);
+    try {
+      return BitmapRegionDecoder.newInstance(in, false);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not read regions of " + uri, e);
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  /**
+   * True when the stored pixels are already upright, false when EXIF asks for
+   * a rotation or flip, or when the orientation cannot be read on this version.
+   */
+  public boolean hasNormalOrientation(String uri) {
+    String path = localPath(uri);
+    if (path == null && Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+      return false;
+    }
+    InputStream in = null;
+    try {
+      ExifInterface exif;
+      if (path != null) {
+        exif = new ExifInterface(path);
+      } else {
+        in = open(uri);
+        exif = new ExifInterface(in);
+      }
+      int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+      return orientation == ExifInterface.ORIENTATION_NORMAL || orientation == ExifInterface.ORIENTATION_UNDEFINED;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (in != null) {
+        closeQuietly(in);
+      }
+    }
+  }
+
+  /**
+   * The uri with the size and modification time of its content, null when
+   * either is unknown and the content could change behind the same uri.
+   */
+  public String identity(String uri) {
+    String path = localPath(uri);
+    if (path != null) {
+      File file = new File(path);
+      if (!file.isFile()) {
+        return null;
+      }
+      return uri + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    Cursor cursor;
+    try {
+      cursor = context.getContentResolver().query(Uri.parse(uri), null, null, null, null);
+    } catch (RuntimeException e) {
+      return null;
+    }
+    if (cursor == null) {
+      return null;
+    }
+    try {
+      if (!cursor.moveToFirst()) {
+        return null;
+      }
+      int size = cursor.getColumnIndex(OpenableColumns.SIZE);
+      int modified = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+      if (modified < 0) {
+        modified = cursor.getColumnIndex(LAST_MODIFIED_COLUMN);
+      }
+      if (size < 0 || modified < 0 || cursor.isNull(size) || cursor.isNull(modified)) {
+        return null;
+      }
+      return uri + "|" + cursor.getLong(size) + "|" + cursor.getLong(modified);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private static int floorSampleSize(int sampleSize) {
+    int result = 1;
+    while (result * 2 <= sampleSize && result * 2 <= MAX_SAMPLE_SIZE) {
+      result *= 2;
+    }
+    return result;
+  }
+
+  private static int readFlags(int sampleSize) {
+    switch (sampleSize) {
+      case 2:
+        return Imgcodecs.IMREAD_REDUCED_COLOR_2;
+      case 4:
+        return Imgcodecs.IMREAD_REDUCED_COLOR_4;
+      case 8:
+        return Imgcodecs.IMREAD_REDUCED_COLOR_8;
+      default:
+        return Imgcodecs.IMREAD_COLOR;
+    }
+  }
+
+  /**
+   * File system path for file:// URIs and bare paths, null for anything that
+   * has to go through the content resolver.
+   */
+  private static String localPath(String uri) {
+    Uri parsed = Uri.parse(uri);
+    String scheme = parsed.getScheme();
+    if (scheme == null) {
+      return uri;
+    }
+    if (ContentResolver.SCHEME_FILE.equals(scheme)) {
+      return parsed.getPath();
+    }
+    return null;
+  }
+
+  private InputStream open(String uri) {
+    try {
+      String path = localPath(uri);
+      InputStream in = path != null
+          ? new FileInputStream(path)
+          : context.getContentResolver().openInputStream(Uri.parse(uri));
+      if (in == null) {
+        throw new IllegalArgumentException("Could not open " + uri);
+      }
+      return in;
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not open " + uri, e);
+    }
+  }
+
+  private byte[] readAll(String uri) {
+    InputStream in = open(uri);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[16 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not read " + uri, e);
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  private static void closeQuietly(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -1,223 +1,195 @@
 package fr.michaelvilleneuve.customcrop;
 
-import com.facebook.react.bridge.WritableMap;
-
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.graphics.Color;
-import android.graphics.Bitmap;
-import android.graphics.Paint;
-import android.graphics.Path;
-import android.graphics.drawable.shapes.PathShape;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
-import android.preference.PreferenceManager;
-
-import com.facebook.react.bridge.WritableNativeMap;
 import android.util.Log;
 
-
-import com.facebook.react.bridge.Callback;
-
-
+import fr.michaelvilleneuve.helpers.MatScope;
+import fr.michaelvilleneuve.helpers.QuadGeometry;
 import fr.michaelvilleneuve.helpers.Quadrilateral;
 import fr.michaelvilleneuve.helpers.ScannedDocument;
 
-
-import org.opencv.android.Utils;
-import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.RotatedRect;
 import org.opencv.core.Point;
 import org.opencv.core.Size;
-import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.core.TermCriteria;
 import org.opencv.imgproc.Imgproc;
 
-
-import android.os.Bundle;
-
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
-import java.util.HashMap;
-
-import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.android.gms.tasks.Task;
-import com.google.mlkit.vision.common.InputImage;
-import com.google.mlkit.vision.text.Text;
-import com.google.mlkit.vision.text.TextRecognition;
-import com.google.mlkit.vision.text.TextRecognizer;
-import com.google.mlkit.vision.text.latin.TextRecognizerOptions;
+import java.util.concurrent.ExecutionException;
 
 public class ImageProcessor {
 
-  private static final String TAG = "l33t";
-  private Size mPreviewSize;
-  private Point[] mPreviewPoints;
-
-private Point[] processTextBlock(Text result) {
-        // [START mlkit_process_text_block]
-        ArrayList<Point> points = new ArrayList<>();
-        for (Text.TextBlock block : result.getTextBlocks()) {
-            android.graphics.Point[] blockCornerPoints = block.getCornerPoints();
-            for (android.graphics.Point p : blockCornerPoints){
-              points.add(new Point(p.x, p.y));
-            }
-        }
-        MatOfPoint2f temp = new MatOfPoint2f();
-        temp.fromList(points);
-        Point[] vertices = { null, null, null, null };
-        if (points.size() != 0){
-          RotatedRect rrect = Imgproc.minAreaRect(temp);
-          rrect.points(vertices);
-        }
-
-      return vertices;
-        // [END mlkit_process_text_block]
-    }
-
-
-  public void processPicture(Mat img, Callback callback) {
-    TextRecognizer recognizer = TextRecognition.getClient(TextRecognizerOptions.DEFAULT_OPTIONS);
+  private static final String TAG = "ImageProcessor";
+  // Search radius bounds, in source pixels, for the full resolution corner refinement
+  private static final int MIN_REFINE_RADIUS = 5;
+  private static final int MAX_REFINE_RADIUS = 32;
 
-    Log.d(TAG, "processPicture - imported image " + img.size().width + "x" + img.size().height);
+  private final DetectionOptions mOptions;
+  private final QuadDetector mDetector;
 
+  // Reused across detections, batches mostly see images of the same size
+  private final Mat mScratchResized = new Mat();
 
-    final ScannedDocument sd = new ScannedDocument(img);
-    android.graphics.Bitmap bmp = android.graphics.Bitmap.createBitmap(img.cols(), img.rows(), android.graphics.Bitmap.Config.ARGB_8888);
-    Utils.matToBitmap(img, bmp);
-    final InputImage image = InputImage.fromBitmap(bmp, 0);
-    final Size srcSize = img.size();
-    final Callback finalCallback = callback;
-    final Mat finalImg = img;
-
-      OnSuccessListener<Text> onTextSuccess = new OnSuccessListener<Text>() {
-          @Override
-          public void onSuccess(Text visionText) {
-            Point[] pts = processTextBlock(visionText);
-                Bundle data = new Bundle();
-
-            Mat doc;
-                if (pts[0] != null){
-                    Quadrilateral quad = new Quadrilateral(sortPoints(pts));
-                    Log.d(TAG, "quad " + quad);
-                    sd.originalPoints = new Point[4];
-
-              sd.originalPoints[0] = new Point(quad.points[3].x, quad.points[3].y); // TopLeft
-              sd.originalPoints[1] = new Point(quad.points[0].x, quad.points[0].y); // TopRight
-              sd.originalPoints[2] = new Point(quad.points[1].x, quad.points[1].y); // BottomRight
-              sd.originalPoints[3] = new Point(quad.points[2].x, quad.points[2].y); // BottomLeft
-
-              sd.previewPoints = mPreviewPoints;
-              sd.previewSize = mPreviewSize;
-
-              doc = fourPointTransform(finalImg, quad.points);
-                } else {
-                   doc = new Mat(finalImg.size(), CvType.CV_8UC4);
-              finalImg.copyTo(doc); 
-                }
-
-            ScannedDocument sdoc = sd.setProcessed(doc);
-            doc.release();
-            finalImg.release();
-
-            finalCallback.invoke(null, sdoc.pointsAsHash());
-          }
-      };
-
-
-      Task<Text> result =
-      recognizer.process(image)
-              .addOnSuccessListener(onTextSuccess)
-              .addOnFailureListener(
-                      new OnFailureListener() {
-                          @Override
-                          public void onFailure( Exception e) {
-                            finalImg.release();
-                            finalCallback.invoke(null, new WritableNativeMap());
-    
-                              // Task failed with an exception
-                              // ...
-                          }
-                      });
+  public ImageProcessor(DetectionOptions options, QuadDetector detector) {
+    mOptions = options;
+    mDetector = detector;
   }
 
+  /**
+   * Detects the document in img, a BGR image decoded at 1/sampleSize of the
+   * source image, and releases img. Returns the released document, with its
+   * corners in source pixels, or null when detection failed. See detect for
+   * regions.
+   */
+  public ScannedDocument processPicture(Mat img, int sampleSize, SourceRegions regions, StageTimer timer) {
+    MatScope scope = new MatScope();
+    scope.track(img);
+    timer.watch(scope);
+    try {
+      ScannedDocument sd = detect(img, sampleSize, regions, timer);
+      // Only the corners go back to JS, the warped document is never materialized here
+      sd.release();
+      return sd;
+    } catch (ExecutionException e) {
+      Log.w(TAG, "Detection failed", e);
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      timer.unwatch(scope);
+      scope.close();
+    }
+  }
 
-  private Point[] sortPoints(Point[] src) {
-
-    ArrayList<Point> srcPoints = new ArrayList<>(Arrays.asList(src));
-
-    Point[] result = { null, null, null, null };
+  public ScannedDocument detect(Mat img, int sampleSize, SourceRegions regions)
+      throws ExecutionException, InterruptedException {
+    return detect(img, sampleSize, regions, new StageTimer("detect"));
+  }
 
-    Comparator<Point> sumComparator = new Comparator<Point>() {
-      @Override
-      public int compare(Point lhs, Point rhs) {
-        return Double.compare(lhs.y + lhs.x, rhs.y + rhs.x);
-      }
-    };
+  /**
+   * Runs the detector on img, a BGR or gray image at 1/sampleSize of the
+   * source image, and blocks until it completes. img stays owned by the
+   * caller. originalPoints of the result are in source pixels, or null when
+   * nothing was found.
+   *
+   * Corners are refined on img when sampleSize is 1, otherwise on windows
+   * read from regions, and not refined when regions is null.
+   *
+   * Must not be called on the main thread. The scratch buffers are reused
+   * between calls, so one instance serves one thread at a time.
+   */
+  public ScannedDocument detect(Mat img, int sampleSize, SourceRegions regions, StageTimer timer)
+      throws ExecutionException, InterruptedException {
+    Log.d(TAG, "processPicture - imported image " + img.size().width + "x" + img.size().height);
 
-    Comparator<Point> diffComparator = new Comparator<Point>() {
+    ScannedDocument sd = new ScannedDocument(img);
+    sd.originalSize = new Size(img.cols() * sampleSize, img.rows() * sampleSize);
 
-      @Override
-      public int compare(Point lhs, Point rhs) {
-        return Double.compare(lhs.y - lhs.x, rhs.y - rhs.x);
+    // The detector only needs a small image, corners are mapped back and refined afterwards
+    double scale = mOptions.detectionScale(img.cols(), img.rows());
+    Mat detectionImg = img;
+    if (scale < 1.0) {
+      Imgproc.resize(img, mScratchResized, new Size(), scale, scale, Imgproc.INTER_AREA);
+      detectionImg = mScratchResized;
+    }
+    timer.lap(StageTimer.CONVERT);
+    Log.d(TAG, "processPicture - detecting on " + detectionImg.cols() + "x" + detectionImg.rows());
+    Point[] pts = mDetector.detect(detectionImg, timer);
+    if (pts != null) {
+      // In source pixels from here on
+      Point[] sorted = QuadGeometry.sortPoints(QuadGeometry.scalePoints(pts, 1.0 / (scale * sampleSize)));
+      if (mOptions.refineCorners) {
+        refineCorners(img, sampleSize, regions, sorted, refineRadius(scale / sampleSize));
       }
-    };
-
-    // top-left corner = minimal sum
-    result[0] = Collections.min(srcPoints, sumComparator);
-
-    // bottom-right corner = maximal sum
-    result[2] = Collections.max(srcPoints, sumComparator);
-
-    // top-right corner = minimal difference
-    result[1] = Collections.min(srcPoints, diffComparator);
-
-    // bottom-left corner = maximal difference
-    result[3] = Collections.max(srcPoints, diffComparator);
-
-    return result;
+      Quadrilateral quad = new Quadrilateral(sorted);
+      Log.d(TAG, "quad " + quad);
+      sd.originalPoints = new Point[4];
+
+      sd.originalPoints[0] = new Point(quad.points[3].x, quad.points[3].y); // TopLeft
+      sd.originalPoints[1] = new Point(quad.points[0].x, quad.points[0].y); // TopRight
+      sd.originalPoints[2] = new Point(quad.points[1].x, quad.points[1].y); // BottomRight
+      sd.originalPoints[3] = new Point(quad.points[2].x, quad.points[2].y); // BottomLeft
+
+      // Corners on the image the detector saw, refinement included
+      sd.previewPoints = QuadGeometry.scalePoints(sd.originalPoints, scale / sampleSize);
+      sd.previewSize = new Size(detectionImg.cols(), detectionImg.rows());
+    }
+    timer.lap(StageTimer.FIT);
+    return sd;
   }
 
-  private Mat fourPointTransform(Mat src, Point[] pts) {
-
-    Point tl = pts[0];
-    Point tr = pts[1];
-    Point br = pts[2];
-    Point bl = pts[3];
-
-    double widthA = Math.sqrt(Math.pow(br.x - bl.x, 2) + Math.pow(br.y - bl.y, 2));
-    double widthB = Math.sqrt(Math.pow(tr.x - tl.x, 2) + Math.pow(tr.y - tl.y, 2));
-
-    double dw = Math.max(widthA, widthB);
-    int maxWidth = Double.valueOf(dw).intValue();
-
-    double heightA = Math.sqrt(Math.pow(tr.x - br.x, 2) + Math.pow(tr.y - br.y, 2));
-    double heightB = Math.sqrt(Math.pow(tl.x - bl.x, 2) + Math.pow(tl.y - bl.y, 2));
-
-    double dh = Math.max(heightA, heightB);
-    int maxHeight = Double.valueOf(dh).intValue();
+  /**
+   * Frees the scratch buffers, the processor can still be used afterwards.
+   */
+  public void release() {
+    mScratchResized.release();
+    mDetector.release();
+  }
 
-    Mat doc = new Mat(maxHeight, maxWidth, CvType.CV_8UC4);
 
-    Mat src_mat = new Mat(4, 1, CvType.CV_32FC2);
-    Mat dst_mat = new Mat(4, 1, CvType.CV_32FC2);
+  /**
+   * Search radius in source pixels, scale being from the source to the detection level.
+   */
+  private int refineRadius(double scale) {
+    // One detection pixel covers 1 / scale source pixels, search a couple of them around each corner
+    int radius = (int) Math.ceil(2.0 / scale);
+    return Math.max(MIN_REFINE_RADIUS, Math.min(radius, MAX_REFINE_RADIUS));
+  }
 
-    src_mat.put(0, 0, tl.x, tl.y, tr.x, tr.y, br.x, br.y, bl.x,
-        bl.y);
-    dst_mat.put(0, 0, 0.0, 0.0, dw, 0.0, dw, dh, 0.0, dh);
+  /**
+   * Moves each corner, in source pixels, to the strongest nearby corner of the
+   * full resolution image. Only a small window around each point is converted
+   * and searched, cut from img when it is the full resolution image, read from
+   * regions otherwise.
+   */
+  private void refineCorners(Mat img, int sampleSize, SourceRegions regions, Point[] corners, int radius) {
+    if (sampleSize != 1 && regions == null) {
+      return;
+    }
+    int width = sampleSize == 1 ? img.cols() : regions.getWidth();
+    int height = sampleSize == 1 ? img.rows() : regions.getHeight();
+    int margin = radius + 2;
+    for (int i = 0; i < corners.length; i++) {
+      Point corner = corners[i];
+      int x0 = (int) Math.max(0, Math.floor(corner.x) - margin);
+      int y0 = (int) Math.max(0, Math.floor(corner.y) - margin);
+      int x1 = (int) Math.min(width, Math.floor(corner.x) + margin + 1);
+      int y1 = (int) Math.min(height, Math.floor(corner.y) + margin + 1);
+
+      // cornerSubPix needs the whole search window inside the image
+      if (corner.x < x0 + radius || corner.y < y0 + radius || corner.x >= x1 - radius || corner.y >= y1 - radius) {
+        continue;
+      }
 
-    Mat m = Imgproc.getPerspectiveTransform(src_mat, dst_mat);
+      MatScope scope = new MatScope();
+      try {
+        Mat gray;
+        if (sampleSize == 1) {
+          gray = scope.track(img.submat(y0, y1, x0, x1));
+          if (gray.channels() != 1) {
+            Mat roi = gray;
+            gray = scope.track(new Mat());
+            Imgproc.cvtColor(roi, gray, Imgproc.COLOR_BGR2GRAY);
+          }
+        } else {
+          Mat window = regions.readGray(x0, y0, x1, y1);
+          if (window == null) {
+            continue;
+          }
+          gray = scope.track(window);
+        }
 
-    Imgproc.warpPerspective(src, doc, m, doc.size());
+        MatOfPoint2f refined = scope.track(new MatOfPoint2f(new Point(corner.x - x0, corner.y - y0)));
+        Imgproc.cornerSubPix(gray, refined, new Size(radius, radius), new Size(-1, -1),
+            new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 20, 0.1));
+        Point p = refined.toArray()[0];
 
-    return doc;
+        if (Math.abs(p.x + x0 - corner.x) <= radius && Math.abs(p.y + y0 - corner.y) <= radius) {
+          corners[i] = new Point(p.x + x0, p.y + y0);
+        }
+      } finally {
+        scope.close();
+      }
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,36 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+/**
+ * Shrinks the decoded image cache when the system runs low on memory: halves
+ * it under moderate pressure or when the UI is hidden, empties it otherwise.
+ */
+public class MemoryTrimmer implements ComponentCallbacks2 {
+
+  private final DecodedImageCache cache;
+
+  public MemoryTrimmer(DecodedImageCache cache) {
+    this.cache = cache;
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW
+        || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+      cache.clear();
+    } else if (level == TRIM_MEMORY_RUNNING_MODERATE || level == TRIM_MEMORY_UI_HIDDEN) {
+      cache.trimTo(cache.getMaxBytes() / 2);
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    cache.clear();
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {
+  }
+}
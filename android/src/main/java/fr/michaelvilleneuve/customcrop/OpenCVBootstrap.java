@@ -0,0 +1,134 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.android.BaseLoaderCallback;
+import org.opencv.android.InstallCallbackInterface;
+import org.opencv.android.LoaderCallbackInterface;
+import org.opencv.android.OpenCVLoader;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the OpenCV native libraries once per process. Processing calls go
+ * through ensureLoaded, which blocks until the first load has completed.
+ * After a failed load, calls fail straight away for RETRY_AFTER_FAILURE_MS
+ * instead of each waiting for another attempt, which may take up to
+ * ASYNC_INIT_TIMEOUT_SECONDS.
+ */
+public class OpenCVBootstrap {
+
+  private static final String TAG = "OpenCVBootstrap";
+  private static final long ASYNC_INIT_TIMEOUT_SECONDS = 30;
+  private static final long RETRY_AFTER_FAILURE_MS = 60 * 1000;
+
+  // Held only by the one-time load, which may wait for a callback on the main thread
+  private static final Object LOAD_LOCK = new Object();
+
+  // Written under LOAD_LOCK, read without it so readers never wait for a load in progress
+  private static volatile boolean loaded;
+  private static volatile long initDurationMs = -1;
+  // SystemClock.elapsedRealtime() at the end of the last failed load, -1 when none failed
+  private static volatile long failedAtMs = -1;
+
+  /**
+   * Starts loading on the given pool so the first crop does not pay for it.
+   */
+  public static void preload(final Context context, WorkerPool pool) {
+    pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        ensureLoaded(context);
+      }
+    });
+  }
+
+  /**
+   * Must not be called on the main thread, loading through OpenCV Manager
+   * waits for a callback delivered there.
+   */
+  public static boolean ensureLoaded(Context context) {
+    if (loaded) {
+      return true;
+    }
+    if (failedRecently()) {
+      return false;
+    }
+
+    synchronized (LOAD_LOCK) {
+      // Callers that queued behind a failed load do not start another one
+      if (loaded) {
+        return true;
+      }
+      if (failedRecently()) {
+        return false;
+      }
+
+      long start = SystemClock.elapsedRealtime();
+      boolean success = OpenCVLoader.initDebug() || initWithManager(context);
+      long end = SystemClock.elapsedRealtime();
+      initDurationMs = end - start;
+      failedAtMs = success ? -1 : end;
+      loaded = success;
+
+      Log.d(TAG, (success ? "SUCCESS" : "ERROR") + " init OpenCV in " + initDurationMs + "ms");
+      return success;
+    }
+  }
+
+  /**
+   * Never blocks, safe to call from the main thread.
+   */
+  public static boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Time spent by the last successful or failed load, -1 before any attempt.
+   */
+  public static long getInitDurationMs() {
+    return initDurationMs;
+  }
+
+  private static boolean failedRecently() {
+    long failedAt = failedAtMs;
+    return failedAt >= 0 && SystemClock.elapsedRealtime() - failedAt < RETRY_AFTER_FAILURE_MS;
+  }
+
+  private static boolean initWithManager(Context context) {
+    final CountDownLatch done = new CountDownLatch(1);
+    final int[] result = { LoaderCallbackInterface.INIT_FAILED };
+
+    BaseLoaderCallback callback = new BaseLoaderCallback(context) {
+      @Override
+      public void onManagerConnected(int status) {
+        result[0] = status;
+        done.countDown();
+      }
+
+      @Override
+      public void onPackageInstall(int operation, InstallCallbackInterface callback) {
+        // No activity to prompt from, give up instead of waiting for an install
+        callback.cancel();
+        done.countDown();
+      }
+    };
+
+    if (!OpenCVLoader.initAsync(OpenCVLoader.OPENCV_VERSION_3_1_0, context, callback)) {
+      return false;
+    }
+
+    try {
+      if (!done.await(ASYNC_INIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        return false;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return result[0] == LoaderCallbackInterface.SUCCESS;
+  }
+}
@@ -0,0 +1,59 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.UUID;
+
+/**
+ * Directory of the app cache holding the crops and captures returned to JS as
+ * file URIs. Nothing tells the module when JS is done with a file, so files
+ * older than MAX_AGE_MS are deleted when the module starts, the caller must
+ * copy the ones it keeps.
+ */
+public class OutputFiles {
+
+  public static final long MAX_AGE_MS = 24L * 60 * 60 * 1000;
+
+  private static final String TAG = "OutputFiles";
+  private static final String DIR = "customcrop";
+
+  private final File dir;
+
+  public OutputFiles(File cacheDir) {
+    this.dir = new File(cacheDir, DIR);
+  }
+
+  /**
+   * New file named after prefix, with extension, the directory is created
+   * when missing.
+   */
+  public File newFile(String prefix, String extension) {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IllegalStateException("Could not create " + dir);
+    }
+    return new File(dir, prefix + "-" + UUID.randomUUID() + "." + extension);
+  }
+
+  /**
+   * Deletes the files last modified before nowMs - maxAgeMs, returns how many
+   * were deleted.
+   */
+  public int prune(long nowMs, long maxAgeMs) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return 0;
+    }
+    int deleted = 0;
+    for (File file : files) {
+      if (file.isFile() && file.lastModified() < nowMs - maxAgeMs) {
+        if (file.delete()) {
+          deleted++;
+        } else {
+          Log.w(TAG, "Could not delete " + file);
+        }
+      }
+    }
+    return deleted;
+  }
+}
@@ -0,0 +1,140 @@
+package fr.michaelvilleneuve.customcrop;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a perspective warp into row bands of the destination and warps them
+ * concurrently. Bands run on a pool of their own, separate from WorkerPool,
+ * because the crop that waits for them already occupies a worker.
+ * WarpBenchmark measures how the warp scales from 1 to 8 bands.
+ */
+public class ParallelWarp {
+
+  // Below this many rows per band the task overhead outweighs the gain
+  private static final int MIN_BAND_ROWS = 64;
+  private static final long KEEP_ALIVE_SECONDS = 10;
+
+  private final ThreadPoolExecutor executor;
+  private final int parallelism;
+
+  /**
+   * Bands run on threads from threadFactory, at most parallelism bands at a
+   * time including the one of the calling thread.
+   */
+  public ParallelWarp(int parallelism, ThreadFactory threadFactory) {
+    this.parallelism = Math.max(1, parallelism);
+    // The calling thread warps one band itself
+    int threads = Math.max(1, this.parallelism - 1);
+    executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * 4), threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Same as Imgproc.warpPerspective(src, dst, warpMat, dst.size()) on a
+   * preallocated dst, using up to maxBands bands, 0 for the pool parallelism.
+   */
+  public void warp(Mat src, Mat dst, Mat warpMat, int maxBands) {
+    int bands = maxBands > 0 ? Math.min(maxBands, parallelism) : parallelism;
+    bands = Math.max(1, Math.min(bands, dst.rows() / MIN_BAND_ROWS));
+    if (bands == 1) {
+      Imgproc.warpPerspective(src, dst, warpMat, dst.size());
+      return;
+    }
+
+    double[] h = new double[9];
+    warpMat.get(0, 0, h);
+
+    List<Future<?>> pending = new ArrayList<>();
+    int rows = dst.rows();
+    try {
+      for (int band = 1; band < bands; band++) {
+        Runnable task = bandTask(src, dst, h, rows * band / bands, rows * (band + 1) / bands);
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        try {
+          executor.execute(future);
+        } catch (RejectedExecutionException e) {
+          // Other crops are using the band threads, warp this band here instead
+          future.run();
+        }
+        pending.add(future);
+      }
+      bandTask(src, dst, h, 0, rows / bands).run();
+
+      for (Future<?> future : pending) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while warping", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Warping a band failed", e.getCause());
+    } finally {
+      // dst must not be released while a band is still writing to it
+      for (Future<?> future : pending) {
+        if (!executor.remove((Runnable) future)) {
+          awaitUninterruptibly(future);
+        }
+      }
+    }
+  }
+
+  private static void awaitUninterruptibly(Future<?> future) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        future.get();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      } catch (Exception e) {
+        break;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Warps destination rows y0 to y1 through a submat, with warpMat followed by
+   * a translation of -y0 so band row 0 maps to destination row y0.
+   */
+  private static Runnable bandTask(final Mat src, final Mat dst, final double[] h, final int y0, final int y1) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        double[] m = h.clone();
+        for (int col = 0; col < 3; col++) {
+          m[3 + col] -= y0 * m[6 + col];
+        }
+        Mat bandMat = new Mat(3, 3, CvType.CV_64F);
+        Mat band = dst.submat(y0, y1, 0, dst.cols());
+        try {
+          bandMat.put(0, 0, m);
+          Imgproc.warpPerspective(src, band, bandMat, band.size());
+        } finally {
+          band.release();
+          bandMat.release();
+        }
+      }
+    };
+  }
+}
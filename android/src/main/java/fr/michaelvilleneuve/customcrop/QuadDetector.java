@@ -0,0 +1,29 @@
+package fr.michaelvilleneuve.customcrop;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Finds the outline of a document in an image. ImageProcessor takes care of
+ * downscaling before and of ordering, refining and mapping the corners back
+ * to source pixels after.
+ */
+public interface QuadDetector {
+
+  String TEXT = "text";
+  String CONTOUR = "contour";
+
+  /**
+   * The four corners, in any order, of the document in img, a BGR or gray
+   * image that stays owned by the caller, or null when nothing was found. Blocks until
+   * the detection has completed. Laps StageTimer.CONVERT and StageTimer.DETECT on timer.
+   */
+  Point[] detect(Mat img, StageTimer timer) throws ExecutionException, InterruptedException;
+
+  /**
+   * Frees the scratch buffers, the detector can still be used afterwards.
+   */
+  void release();
+}
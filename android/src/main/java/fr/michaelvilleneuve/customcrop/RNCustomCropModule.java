@@ -1,50 +1,45 @@
 package fr.michaelvilleneuve.customcrop;
 
-import fr.michaelvilleneuve.customcrop.ImageProcessor;
+import fr.michaelvilleneuve.helpers.MatScope;
+import fr.michaelvilleneuve.helpers.QuadGeometry;
+import fr.michaelvilleneuve.helpers.ScannedDocument;
 
-import android.graphics.Bitmap;
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.BitmapFactory;
-import android.provider.MediaStore;
-import android.util.Base64;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+import android.view.View;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.NoSuchKeyException;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.facebook.react.uimanager.IllegalViewOperationException;
+import com.facebook.react.uimanager.NativeViewHierarchyManager;
+import com.facebook.react.uimanager.UIBlock;
+import com.facebook.react.uimanager.UIManagerModule;
+
+import com.google.mlkit.vision.text.TextRecognition;
+import com.google.mlkit.vision.text.TextRecognizer;
+import com.google.mlkit.vision.text.latin.TextRecognizerOptions;
 
-import org.opencv.android.BaseLoaderCallback;
-import org.opencv.android.OpenCVLoader;
-import org.opencv.android.LoaderCallbackInterface;
-import org.opencv.android.Utils;
-import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfInt;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
-import org.opencv.imgcodecs.*;
-import org.opencv.core.Rect;
-import org.opencv.core.Scalar;
-import org.opencv.core.Size;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
-
-import org.opencv.calib3d.Calib3d;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.util.Log;
 
@@ -52,10 +47,36 @@ public class RNCustomCropModule extends ReactContextBaseJavaModule {
 
   private final ReactApplicationContext reactContext;
   private final String TAG = ":(";
+  private static final String BATCH_PROGRESS_EVENT = "CustomCropBatchProgress";
+  private static final String DOCUMENT_FOUND_EVENT = "CustomCropDocumentFound";
+  private static final String STAGE_TIMINGS_EVENT = "CustomCropStageTimings";
+  private final WorkerPool workers;
+  private final ParallelWarp warper = new ParallelWarp(Runtime.getRuntime().availableProcessors(),
+      new BackgroundThreadFactory("CustomCrop-warp-"));
+  private final DetectionMetrics detectionMetrics = new DetectionMetrics();
+  private final DetectionCache detectionCache = new DetectionCache();
+  private final DecodedImageCache decodedImages;
+  private final MemoryTrimmer memoryTrimmer;
+  private final OutputFiles outputFiles;
+  private TextRecognizer recognizer;
+  private volatile boolean stageTimingsEnabled;
 
   public RNCustomCropModule(ReactApplicationContext reactContext) {
+    this(reactContext, false);
+  }
+
+  public RNCustomCropModule(ReactApplicationContext reactContext, boolean preloadOpenCV) {
     super(reactContext);
     this.reactContext = reactContext;
+    this.workers = WorkerPool.forDevice();
+    this.decodedImages = new DecodedImageCache(defaultDecodedCacheBytes(reactContext));
+    this.memoryTrimmer = new MemoryTrimmer(decodedImages);
+    reactContext.getApplicationContext().registerComponentCallbacks(memoryTrimmer);
+    this.outputFiles = new OutputFiles(reactContext.getCacheDir());
+    pruneOutputFiles();
+    if (preloadOpenCV) {
+      OpenCVBootstrap.preload(reactContext, workers);
+    }
   }
 
   @Override
@@ -63,114 +84,608 @@ public class RNCustomCropModule extends ReactContextBaseJavaModule {
     return "CustomCropManager";
   }
 
-  @ReactMethod
-  public void crop(ReadableMap points, String imageUri, Callback callback) {
-    BaseLoaderCallback mLoaderCallback = new BaseLoaderCallback(this.reactContext) {
+  @Override
+  public void onCatalystInstanceDestroy() {
+    super.onCatalystInstanceDestroy();
+    workers.shutdown();
+    warper.shutdown();
+    reactContext.getApplicationContext().unregisterComponentCallbacks(memoryTrimmer);
+    decodedImages.clear();
+    synchronized (this) {
+      if (recognizer != null) {
+        recognizer.close();
+        recognizer = null;
+      }
+    }
+  }
+
+  /**
+   * A quarter of the app's memory class, enough for a 12 MP image on most devices.
+   */
+  private static long defaultDecodedCacheBytes(Context context) {
+    ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    return activityManager.getMemoryClass() * 1024L * 1024L / 4;
+  }
+
+  /**
+   * Deletes the crops and captures of earlier sessions off the calling thread.
+   */
+  private void pruneOutputFiles() {
+    workers.execute(new Runnable() {
       @Override
-      public void onManagerConnected(int status) {
-        if (status == LoaderCallbackInterface.SUCCESS) {
-          Log.d(TAG, "SUCCESS init OpenCV: " + status);
-        } else {
-          Log.d(TAG, "ERROR init OpenCV: " + status);
+      public void run() {
+        int deleted = outputFiles.prune(System.currentTimeMillis(), OutputFiles.MAX_AGE_MS);
+        if (deleted > 0) {
+          Log.d(TAG, "Deleted " + deleted + " old output files");
         }
       }
-    };
+    });
+  }
 
-    if (!OpenCVLoader.initDebug()) {
-      OpenCVLoader.initAsync(OpenCVLoader.OPENCV_VERSION_3_1_0, this.reactContext, mLoaderCallback);
-    } else {
-      mLoaderCallback.onManagerConnected(LoaderCallbackInterface.SUCCESS);
+  private ImageLoader newLoader() {
+    return new ImageLoader(reactContext, decodedImages);
+  }
+
+  /**
+   * The recognizer loads its model on creation, one instance is shared by all
+   * detections for the lifetime of the module.
+   */
+  private synchronized TextRecognizer getRecognizer() {
+    if (recognizer == null) {
+      recognizer = TextRecognition.getClient(TextRecognizerOptions.DEFAULT_OPTIONS);
+      detectionMetrics.onRecognizerCreated();
+    }
+    return recognizer;
+  }
+
+  /**
+   * A processor sharing the module's recognizer and metrics, for detections
+   * that do not go through findDocument.
+   */
+  ImageProcessor newImageProcessor(DetectionOptions options) {
+    if (QuadDetector.CONTOUR.equals(options.detector)) {
+      // Never loads the text recognition model
+      return new ImageProcessor(options, new ContourDetector());
     }
-    Mat src = Imgcodecs.imread(imageUri.replace("file://", ""));
-      Imgproc.cvtColor(src, src, Imgproc.COLOR_BGR2RGB);
+    return new ImageProcessor(options, new TextBlockDetector(getRecognizer(), detectionMetrics));
+  }
 
-      System.out.println("EASYEXPENSE - Source: " + src.size().width + " - " + src.size().height);
+  @ReactMethod
+  public void getDetectionMetrics(Callback callback) {
+    WritableMap metrics = detectionMetrics.toMap();
+    metrics.putDouble("openCVInitMs", OpenCVBootstrap.getInitDurationMs());
+    detectionCache.putStats(metrics);
+    callback.invoke(null, metrics);
+  }
 
-    MatOfPoint2f startMat;
-    MatOfPoint2f endMat;
-    Mat doc;
-    WritableMap map = Arguments.createMap();
-    try {
-      Point tl = new Point(points.getMap("topLeft").getDouble("x"), points.getMap("topLeft").getDouble("y"));
-      Point tr = new Point(points.getMap("topRight").getDouble("x"), points.getMap("topRight").getDouble("y"));
-      Point bl = new Point(points.getMap("bottomLeft").getDouble("x"), points.getMap("bottomLeft").getDouble("y"));
-      Point br = new Point(points.getMap("bottomRight").getDouble("x"), points.getMap("bottomRight").getDouble("y"));
+  /**
+   * Number of detection results kept for findDocument, 0 disables the cache.
+   */
+  @ReactMethod
+  public void setDetectionCacheSize(int size) {
+    detectionCache.setMaxEntries(size);
+  }
+
+  @ReactMethod
+  public void clearDetectionCache() {
+    detectionCache.clear();
+  }
+
+  @ReactMethod
+  public void getNativeMemoryStats(Callback callback) {
+    WritableMap stats = Arguments.createMap();
+    stats.putDouble("liveMatBytes", MatScope.liveBytes());
+    stats.putDouble("peakMatBytes", MatScope.peakBytes());
+    stats.putDouble("decodedCacheBytes", decodedImages.getBytes());
+    stats.putDouble("decodedCacheMaxBytes", decodedImages.getMaxBytes());
+    stats.putDouble("decodedCacheHits", decodedImages.getHits());
+    stats.putDouble("decodedCacheMisses", decodedImages.getMisses());
+    callback.invoke(null, stats);
+  }
+
+  /**
+   * Byte budget of the decoded image cache shared by findDocument and crop, 0 disables it.
+   */
+  @ReactMethod
+  public void setDecodedImageCacheSize(double bytes) {
+    decodedImages.setMaxBytes((long) bytes);
+  }
 
-      double bottom = Math.sqrt(Math.pow(br.x - bl.x, 2) + Math.pow(br.y - bl.y, 2));
-      double top = Math.sqrt(Math.pow(tr.x - tl.x, 2) + Math.pow(tr.y - tl.y, 2));
+  /**
+   * Emits CustomCropStageTimings after every crop and findDocument, with the
+   * same timings the timings option adds to their result, plus the uri.
+   */
+  @ReactMethod
+  public void setStageTimingsEnabled(boolean enabled) {
+    stageTimingsEnabled = enabled;
+  }
+
+  @ReactMethod
+  public void crop(final ReadableMap points, final String imageUri, final Callback callback) {
+    submit(callback, new Runnable() {
+      @Override
+      public void run() {
+        callback.invoke(null, cropImage(readCorners(points), imageUri, CropOptions.legacy()));
+      }
+    });
+  }
 
-      System.out.println("EASYEXPENSE - Width: " + bottom + " - " + top);
-      double maxWidth = Math.max(bottom, top);
+  @ReactMethod
+  public void cropWithOptions(final ReadableMap points, final String imageUri, final ReadableMap options,
+      final Callback callback) {
+    submit(callback, new Runnable() {
+      @Override
+      public void run() {
+        // Parsed on the worker so invalid options reach the callback
+        callback.invoke(null, cropImage(readCorners(points), imageUri, CropOptions.fromMap(options)));
+      }
+    });
+  }
 
-      double right = Math.sqrt(Math.pow(tr.x - br.x, 2) + Math.pow(tr.y - br.y, 2));
-      double left = Math.sqrt(Math.pow(tl.x - bl.x, 2) + Math.pow(tl.y - bl.y, 2));
+  /**
+   * Parsed options, or null after passing the error to callback when they are
+   * invalid: an unknown value throws IllegalArgumentException and a mistyped
+   * key UnexpectedNativeTypeException, which would crash the app if thrown
+   * from a ReactMethod.
+   */
+  private static CropOptions parseCropOptions(ReadableMap options, Callback callback) {
+    try {
+      return CropOptions.fromMap(options);
+    } catch (RuntimeException e) {
+      callback.invoke(describe(e), null);
+      return null;
+    }
+  }
 
-      System.out.println("EASYEXPENSE - Hieght: " + left + " - " + right);
-      double maxHeight = Math.max(right, left);
+  private static String describe(Throwable e) {
+    return e.getMessage() != null ? e.getMessage() : e.toString();
+  }
 
-      doc = new Mat((int) maxHeight, (int) maxWidth, CvType.CV_8UC4);
-      
-      startMat = new MatOfPoint2f(tl, tr, bl, br);
-      endMat = new MatOfPoint2f(new Point(0, 0), new Point((int) maxWidth, 0), new Point(0, (int) maxHeight),
-      new Point((int) maxWidth, (int) maxHeight));
+  /**
+   * Crops every page of pages, an array of { points, uri }, with the shared
+   * options. Emits CustomCropBatchProgress as pages complete and calls back
+   * with the results in page order.
+   */
+  @ReactMethod
+  public void cropBatch(final ReadableArray pages, ReadableMap options, final Callback callback) {
+    final CropOptions cropOptions = parseCropOptions(options, callback);
+    if (cropOptions == null) {
+      return;
     }
-    catch (NoSuchKeyException e) {
-      doc = new Mat((int) src.size().height, (int) src.size().width, CvType.CV_8UC4);
-      startMat = new MatOfPoint2f(new Point(0, 0), new Point((int) src.size().width, 0), new Point(0, (int) src.size().height),
-          new Point((int) src.size().width, (int) src.size().height));
-      endMat = new MatOfPoint2f(new Point(0, 0), new Point((int) src.size().width, 0), new Point(0, (int) src.size().height),
-          new Point((int) src.size().width, (int) src.size().height));
+    final String batchId;
+    int maxInFlight = workers.getPoolSize();
+    try {
+      batchId = options != null && options.hasKey("batchId") ? options.getString("batchId") : null;
+      if (options != null && options.hasKey("maxInFlight")) {
+        maxInFlight = Math.min(maxInFlight, options.getInt("maxInFlight"));
+      }
+    } catch (RuntimeException e) {
+      callback.invoke(describe(e), null);
+      return;
     }
 
+    BatchRunner.Job job = new BatchRunner.Job() {
+      @Override
+      public WritableMap run(int index) {
+        ReadableMap page = pages.getMap(index);
+        ReadableMap points = page.hasKey("points") ? page.getMap("points") : null;
+        return cropImage(readCorners(points), page.getString("uri"), cropOptions);
+      }
+    };
 
-    Mat warpMat = Imgproc.getPerspectiveTransform(startMat, endMat);
-    Imgproc.warpPerspective(src, doc, warpMat, doc.size());
+    BatchRunner.Listener listener = new BatchRunner.Listener() {
+      @Override
+      public void onItem(int index, String error, int completed, int total) {
+        WritableMap event = Arguments.createMap();
+        event.putString("batchId", batchId);
+        event.putInt("index", index);
+        event.putInt("completed", completed);
+        event.putInt("total", total);
+        event.putString("error", error);
+        emit(BATCH_PROGRESS_EVENT, event);
+      }
 
-    Bitmap bitmap = Bitmap.createBitmap(doc.cols(), doc.rows(), Bitmap.Config.ARGB_8888);
-    Utils.matToBitmap(doc, bitmap);
+      @Override
+      public void onDone(WritableArray results) {
+        callback.invoke(null, results);
+      }
+    };
 
-    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-    bitmap.compress(Bitmap.CompressFormat.JPEG, 70, byteArrayOutputStream);
-    byte[] byteArray = byteArrayOutputStream.toByteArray();
+    new BatchRunner(workers, pages.size(), maxInFlight, job, listener).start();
+  }
 
-    map.putString("image", Base64.encodeToString(byteArray, Base64.DEFAULT));
-    callback.invoke(null, map);
+  /**
+   * Detects the document in every image of uris. Emits CustomCropDocumentFound
+   * as each image completes, in order, and calls back with the corners of all
+   * images, null where nothing was found.
+   */
+  @ReactMethod
+  public void findDocumentBatch(final ReadableArray uris, final ReadableMap options, final Callback callback) {
+    submit(callback, new Runnable() {
+      @Override
+      public void run() {
+        // Parsed on the worker so invalid options reach the callback
+        final DetectionOptions detectionOptions = DetectionOptions.fromMap(options);
+        final String batchId = options != null && options.hasKey("batchId") ? options.getString("batchId") : null;
+        final List<String> uriList = new ArrayList<>();
+        for (int i = 0; i < uris.size(); i++) {
+          uriList.add(uris.getString(i));
+        }
 
-    warpMat.release();
+        requireOpenCV();
+        ImageProcessor processor = newImageProcessor(detectionOptions);
+        DetectionBatch.Listener listener = new DetectionBatch.Listener() {
+          @Override
+          public void onResult(int index, WritableMap points, String error) {
+            WritableMap event = Arguments.createMap();
+            event.putString("batchId", batchId);
+            event.putInt("index", index);
+            event.putInt("total", uriList.size());
+            if (points != null) {
+              event.putMap("points", points);
+            } else {
+              event.putNull("points");
+            }
+            event.putString("error", error);
+            emit(DOCUMENT_FOUND_EVENT, event);
+          }
+
+          @Override
+          public void onDone(WritableArray results) {
+            callback.invoke(null, results);
+          }
+        };
+        new DetectionBatch(newLoader(), processor, detectionOptions, workers, uriList, listener).run();
+      }
+    });
+  }
+
+  /**
+   * Takes a full resolution picture with the ScannerView of reactTag and crops
+   * it with the outline last detected on the preview, mapped onto the picture,
+   * without detecting again. The whole picture is kept when nothing was
+   * detected. The result is the one of cropWithOptions plus the picture as
+   * originalUri, originalWidth and originalHeight, and the corners used as
+   * points.
+   */
+  @ReactMethod
+  public void captureDocument(final int reactTag, ReadableMap options, final Callback callback) {
+    final CropOptions cropOptions = parseCropOptions(options, callback);
+    if (cropOptions == null) {
+      return;
+    }
+    UIManagerModule uiManager = reactContext.getNativeModule(UIManagerModule.class);
+    uiManager.addUIBlock(new UIBlock() {
+      @Override
+      public void execute(NativeViewHierarchyManager nativeViewHierarchyManager) {
+        View view;
+        try {
+          view = nativeViewHierarchyManager.resolveView(reactTag);
+        } catch (IllegalViewOperationException e) {
+          view = null;
+        }
+        if (!(view instanceof ScannerView)) {
+          callback.invoke("No scanner view with tag " + reactTag, null);
+          return;
+        }
+        ((ScannerView) view).capture(new ScannerView.CaptureCallback() {
+          @Override
+          public void onCaptured(final byte[] jpeg, final ScannedDocument capture) {
+            submit(callback, new Runnable() {
+              @Override
+              public void run() {
+                callback.invoke(null, cropCapture(jpeg, capture, cropOptions));
+              }
+            });
+          }
+
+          @Override
+          public void onCaptureFailed(String message) {
+            callback.invoke(message, null);
+          }
+        });
+      }
+    });
+  }
+
+  private WritableMap cropCapture(byte[] jpeg, ScannedDocument capture, CropOptions options) {
+    File file = writeCapture(jpeg);
+    Point[] corners = null;
+    WritableMap points = null;
+    if (capture.originalPoints != null) {
+      // The labels of originalPoints do not match the corners they hold, order them by position
+      Point[] sorted = QuadGeometry.sortPoints(capture.originalPoints);
+      corners = QuadGeometry.cropOrder(sorted);
+      points = ScannedDocument.pointsAsHash(sorted);
+    }
+    WritableMap map = cropImage(corners, Uri.fromFile(file).toString(), options);
+    map.putString("originalUri", Uri.fromFile(file).toString());
+    map.putInt("originalWidth", (int) capture.originalSize.width);
+    map.putInt("originalHeight", (int) capture.originalSize.height);
+    if (points != null) {
+      map.putMap("points", points);
+    } else {
+      map.putNull("points");
+    }
+    return map;
+  }
+
+  private File writeCapture(byte[] jpeg) {
+    File file = outputFiles.newFile("capture", "jpg");
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(file);
+      out.write(jpeg);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write the picture", e);
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          Log.w(TAG, "Could not close " + file, e);
+        }
+      }
+    }
+    return file;
+  }
+
+  // Required by NativeEventEmitter on recent React Native versions
+  @ReactMethod
+  public void addListener(String eventName) {
+  }
+
+  @ReactMethod
+  public void removeListeners(double count) {
+  }
+
+  private void emit(String eventName, WritableMap payload) {
+    if (reactContext.hasActiveCatalystInstance()) {
+      reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(eventName, payload);
+    }
   }
 
   @ReactMethod
   public void findDocument(String imageUri, Callback callback) {
-    BaseLoaderCallback mLoaderCallback = new BaseLoaderCallback(this.reactContext) {
+    findDocumentWithOptions(imageUri, null, callback);
+  }
+
+  @ReactMethod
+  public void findDocumentWithOptions(final String imageUri, final ReadableMap options, final Callback callback) {
+    submit(callback, new Runnable() {
+      @Override
+      public void run() {
+        // Parsed on the worker so invalid options reach the callback
+        detectDocument(imageUri, DetectionOptions.fromMap(options), callback);
+      }
+    });
+  }
+
+  /**
+   * Runs the task on the worker pool, the callback receives an error when the
+   * pool is saturated or the task throws, errors included. Tasks release their
+   * Mats in finally blocks, so nothing is left behind by a failed one.
+   */
+  private void submit(final Callback callback, final Runnable task) {
+    boolean accepted = workers.execute(new Runnable() {
       @Override
-      public void onManagerConnected(int status) {
-        if (status == LoaderCallbackInterface.SUCCESS) {
-          Log.d(TAG, "SUCCESS init OpenCV: " + status);
-        } else {
-          Log.d(TAG, "ERROR init OpenCV: " + status);
+      public void run() {
+        try {
+          task.run();
+        } catch (Throwable e) {
+          // OutOfMemoryError included, large images are what fails and JS still needs its answer
+          Log.e(TAG, "Image processing failed", e);
+          callback.invoke(describe(e), null);
         }
       }
-    };
+    });
+
+    if (!accepted) {
+      Log.w(TAG, "Rejected image processing, " + workers.getQueueDepth() + " tasks pending");
+      callback.invoke("Too many pending image operations, try again later", null);
+    }
+  }
+
+  private void requireOpenCV() {
+    if (!OpenCVBootstrap.ensureLoaded(reactContext)) {
+      throw new IllegalStateException("OpenCV could not be loaded");
+    }
+  }
 
-    if (!OpenCVLoader.initDebug()) {
-      OpenCVLoader.initAsync(OpenCVLoader.OPENCV_VERSION_3_1_0, this.reactContext, mLoaderCallback);
+  /**
+   * Crops the quad at corners, see readCorners, or the whole image when null.
+   */
+  private WritableMap cropImage(Point[] corners, String imageUri, CropOptions options) {
+    requireOpenCV();
+    StageTimer timer = new StageTimer("crop");
+    ImageLoader loader = newLoader();
+
+    BitmapFactory.Options bounds = loader.readBounds(imageUri);
+
+    // Decode only as many pixels as the requested output size needs
+    int sampleSize;
+    if (corners != null) {
+      sampleSize = ImageLoader.sampleSizeForScale(options.outputScale(QuadGeometry.quadWidth(corners), QuadGeometry.quadHeight(corners)));
     } else {
-      mLoaderCallback.onManagerConnected(LoaderCallbackInterface.SUCCESS);
+      // The decoded image may be rotated by its EXIF orientation, assume the worse case
+      sampleSize = ImageLoader.sampleSizeForScale(Math.min(
+          options.outputScale(bounds.outWidth, bounds.outHeight),
+          options.outputScale(bounds.outHeight, bounds.outWidth)));
     }
 
-    System.out.println("l33t uri - " + imageUri);
-    if (!imageUri.isEmpty()) {
-      Mat src = Imgcodecs.imread(imageUri.replace("file://", ""));
-      Imgproc.cvtColor(src, src, Imgproc.COLOR_BGR2RGB);
+    // The region decoder ignores EXIF orientation, rotated images take the full decode
+    if (options.useTiled(bounds.outWidth / sampleSize, bounds.outHeight / sampleSize)
+        && loader.hasNormalOrientation(imageUri)) {
+      return cropTiled(loader, imageUri, corners, bounds, sampleSize, options, timer);
+    }
 
-      System.out.println("l33t - Source: " + src.size().width + " - " + src.size().height);
+    MatScope scope = new MatScope();
+    timer.watch(scope);
+    try {
+      // Stays BGR from decode to encode, no full frame color conversion on the way
+      Mat src = scope.track(loader.load(imageUri, sampleSize));
+      timer.lap(StageTimer.DECODE);
 
-      ImageProcessor ip = new ImageProcessor();
+      if (corners != null) {
+        for (int i = 0; i < corners.length; i++) {
+          corners[i] = new Point(corners[i].x / sampleSize, corners[i].y / sampleSize);
+        }
+      } else {
+        double width = src.size().width;
+        double height = src.size().height;
+        corners = new Point[] { new Point(0, 0), new Point(width, 0), new Point(0, height), new Point(width, height) };
+      }
+
+      double maxWidth = QuadGeometry.quadWidth(corners);
+      double maxHeight = QuadGeometry.quadHeight(corners);
+
+      // Resizing is folded into the warp by shrinking the destination quad
+      double scale = options.outputScale(maxWidth, maxHeight);
+      int outWidth = Math.max(1, (int) (maxWidth * scale));
+      int outHeight = Math.max(1, (int) (maxHeight * scale));
+
+      Mat doc = scope.track(new Mat(outHeight, outWidth, src.type()));
+      Mat warpMat = scope.track(QuadGeometry.cropTransform(corners, outWidth, outHeight));
+      warper.warp(src, doc, warpMat, options.parallelism);
+      timer.lap(StageTimer.WARP);
+
+      WritableMap map = Arguments.createMap();
+      new ImageEncoder(options, outputFiles).encode(doc, map, timer);
+      return reportTimings(timer, imageUri, options.timings, map);
+    } finally {
+      timer.unwatch(scope);
+      scope.close();
+    }
+  }
+
+  /**
+   * Same output as the full decode path, but the source is read one strip at a
+   * time so memory is bounded by the output plus one strip.
+   */
+  private WritableMap cropTiled(ImageLoader loader, String imageUri, Point[] corners, BitmapFactory.Options bounds,
+      int sampleSize, CropOptions options, StageTimer timer) {
+    if (corners == null) {
+      double width = bounds.outWidth;
+      double height = bounds.outHeight;
+      corners = new Point[] { new Point(0, 0), new Point(width, 0), new Point(0, height), new Point(width, height) };
+    }
+
+    double maxWidth = QuadGeometry.quadWidth(corners) / sampleSize;
+    double maxHeight = QuadGeometry.quadHeight(corners) / sampleSize;
+    double scale = options.outputScale(maxWidth, maxHeight);
+    int outWidth = Math.max(1, (int) (maxWidth * scale));
+    int outHeight = Math.max(1, (int) (maxHeight * scale));
+
+    BitmapRegionDecoder decoder = loader.openRegionDecoder(imageUri);
+    MatScope scope = new MatScope();
+    timer.watch(scope);
+    try {
+      Mat doc = scope.track(new TiledWarp(decoder, sampleSize, options.stripHeight).warp(corners, outWidth, outHeight, timer));
+      WritableMap map = Arguments.createMap();
+      new ImageEncoder(options, outputFiles).encode(doc, map, timer);
+      return reportTimings(timer, imageUri, options.timings, map);
+    } finally {
+      timer.unwatch(scope);
+      scope.close();
+      decoder.recycle();
+    }
+  }
+
+  /**
+   * Adds the timings to result when asked for, creating the map when result is
+   * null, and emits them as CustomCropStageTimings when enabled. Returns result.
+   */
+  private WritableMap reportTimings(StageTimer timer, String imageUri, boolean inResult, WritableMap result) {
+    if (inResult) {
+      if (result == null) {
+        result = Arguments.createMap();
+      }
+      result.putMap("timings", timingsAsMap(timer));
+    }
+    if (stageTimingsEnabled) {
+      WritableMap event = timingsAsMap(timer);
+      event.putString("uri", imageUri);
+      emit(STAGE_TIMINGS_EVENT, event);
+    }
+    return result;
+  }
 
-      // WritableMap map = Arguments.createMap();
-      // map.putString("crop", ip.processPicture(src));
-      ip.processPicture(src, callback);
-      // callback.invoke(null, ip.processPicture(src));
+  private static WritableMap timingsAsMap(StageTimer timer) {
+    WritableMap stages = Arguments.createMap();
+    for (Map.Entry<String, Long> stage : timer.getStageNanos().entrySet()) {
+      stages.putDouble(stage.getKey(), stage.getValue() / 1e6);
+    }
+    WritableMap map = Arguments.createMap();
+    map.putString("operation", timer.getOperation());
+    map.putDouble("totalMs", timer.getTotalNanos() / 1e6);
+    map.putMap("stages", stages);
+    map.putDouble("peakNativeBytes", timer.getPeakNativeBytes());
+    return map;
+  }
+
+  /**
+   * Corners in source pixels ordered top left, top right, bottom left, bottom
+   * right, or null to crop the whole image.
+   */
+  private Point[] readCorners(ReadableMap points) {
+    if (points == null || !points.hasKey("topLeft") || !points.hasKey("topRight")
+        || !points.hasKey("bottomLeft") || !points.hasKey("bottomRight")) {
+      return null;
+    }
+    try {
+      Point tl = new Point(points.getMap("topLeft").getDouble("x"), points.getMap("topLeft").getDouble("y"));
+      Point tr = new Point(points.getMap("topRight").getDouble("x"), points.getMap("topRight").getDouble("y"));
+      Point bl = new Point(points.getMap("bottomLeft").getDouble("x"), points.getMap("bottomLeft").getDouble("y"));
+      Point br = new Point(points.getMap("bottomRight").getDouble("x"), points.getMap("bottomRight").getDouble("y"));
+      return new Point[] { tl, tr, bl, br };
+    }
+    catch (NoSuchKeyException e) {
+      return null;
+    }
+  }
+
+  private void detectDocument(String imageUri, DetectionOptions options, Callback callback) {
+    requireOpenCV();
+    StageTimer timer = new StageTimer("findDocument");
+
+    if (!imageUri.isEmpty()) {
+      ImageLoader loader = newLoader();
+
+      // Re-layouts and import pipelines ask again for the same file, answer from the cache
+      String cacheKey = DetectionCache.key(loader.identity(imageUri), options);
+      DetectionCache.Entry cached = detectionCache.get(cacheKey);
+      if (cached != null) {
+        WritableMap result = cached.pointsAsHash();
+        timer.lap(StageTimer.SERIALIZE);
+        callback.invoke(null, reportTimings(timer, imageUri, options.timings, result));
+        return;
+      }
+
+      ImageProcessor ip = newImageProcessor(options);
+      SourceRegions regions = null;
+      ScannedDocument sd;
+      try {
+        int sampleSize = loader.sampleSizeForDetection(imageUri, options);
+        Mat src = loader.loadKeepingFullSize(imageUri, sampleSize);
+        regions = loader.openRegions(imageUri, sampleSize, options);
+        timer.lap(StageTimer.DECODE);
+        sd = ip.processPicture(src, sampleSize, regions, timer);
+      } finally {
+        if (regions != null) {
+          regions.recycle();
+        }
+        ip.release();
+      }
+      WritableMap result;
+      if (sd != null) {
+        detectionCache.put(cacheKey, sd.originalPoints);
+        result = sd.pointsAsHash();
+      } else {
+        // Failed detections answer an empty map, unlike images where nothing was found
+        result = Arguments.createMap();
+      }
+      timer.lap(StageTimer.SERIALIZE);
+      callback.invoke(null, reportTimings(timer, imageUri, options.timings, result));
     }
   }
 
@@ -12,8 +12,21 @@ import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.uimanager.ViewManager;
 import com.facebook.react.bridge.JavaScriptModule;
 public class RNCustomCropPackage implements ReactPackage {
+    private final boolean preloadOpenCV;
+
+    public RNCustomCropPackage() {
+      this(false);
+    }
+
+    /**
+     * @param preloadOpenCV load the OpenCV native libraries as soon as the module is created
+     */
+    public RNCustomCropPackage(boolean preloadOpenCV) {
+      this.preloadOpenCV = preloadOpenCV;
+    }
+
     public List<NativeModule> createNativeModules(ReactApplicationContext reactContext) {
-      return Arrays.<NativeModule>asList(new RNCustomCropModule(reactContext));
+      return Arrays.<NativeModule>asList(new RNCustomCropModule(reactContext, preloadOpenCV));
     }
     
     public List<Class<? extends JavaScriptModule>> createJSModules() {
@@ -21,6 +34,6 @@ public class RNCustomCropPackage implements ReactPackage {
     }
 
     public List<ViewManager> createViewManagers(ReactApplicationContext reactContext) {
-      return Collections.emptyList();
+      return Arrays.<ViewManager>asList(new ScannerViewManager());
     }
 }
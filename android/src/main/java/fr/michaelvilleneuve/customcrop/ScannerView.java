@@ -0,0 +1,432 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.LifecycleEventListener;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.uimanager.ThemedReactContext;
+import com.facebook.react.uimanager.events.RCTEventEmitter;
+
+import fr.michaelvilleneuve.helpers.QuadGeometry;
+import fr.michaelvilleneuve.helpers.ScannedDocument;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.android.JavaCamera2View;
+import org.opencv.android.JavaCameraView;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Camera preview that detects the document on live frames and draws its
+ * outline. Preview frames are drawn at the camera rate while detection runs
+ * on its own thread, DetectionScheduler picks the frames it sees and
+ * CornerSmoother steadies the outline between them.
+ *
+ * Frames come from Camera2 through an ImageReader where the device supports
+ * it natively, from the Camera 1 preview callback otherwise. capture takes a
+ * full resolution picture and maps the last outline onto it.
+ */
+public class ScannerView extends FrameLayout
+    implements CameraBridgeViewBase.CvCameraViewListener2, LifecycleEventListener {
+
+  private static final String TAG = "ScannerView";
+  public static final String DOCUMENT_DETECTED_EVENT = "topDocumentDetected";
+
+  private static final Scalar OUTLINE_COLOR = new Scalar(0, 255, 0, 255);
+  private static final int OUTLINE_THICKNESS = 4;
+  // Long edge of the luma handed to the detector, the same level findDocument detects at
+  private static final int DETECTION_SIZE = DetectionOptions.DEFAULT_MAX_DETECTION_SIZE;
+
+  private final ThemedReactContext reactContext;
+  private final ExecutorService detectionThread;
+  private final DetectionScheduler scheduler = new DetectionScheduler();
+
+  // Only touched on the UI thread
+  private CameraBridgeViewBase camera;
+  private boolean cameraEnabled;
+  private boolean legacyCamera;
+  // Set once by destroy, the camera must not open afterwards and no frame may reach the detection thread
+  private volatile boolean destroyed;
+
+  private ImageProcessor processor;
+  // Written by the camera thread only while no detection runs
+  private Mat detectionFrame;
+  private final Size detectionSize = new Size();
+  // Preview frame pixels per detectionFrame pixel
+  private double detectionFrameScale = 1.0;
+  private volatile Point[] outline;
+  // Outline in preview frame pixels with the frame size, null when nothing is detected
+  private volatile ScannedDocument lastDetection;
+  private volatile String detector = QuadDetector.TEXT;
+  private volatile boolean smoothing = true;
+  private volatile boolean smootherStale;
+  // Only touched on the detection thread
+  private String processorDetector;
+  private CornerSmoother smoother;
+  private int frameWidth;
+  private int frameHeight;
+
+  public interface CaptureCallback {
+    /**
+     * capture has originalSize set to the size of the picture, and
+     * originalPoints to the last outline mapped onto it, or null.
+     */
+    void onCaptured(byte[] jpeg, ScannedDocument capture);
+
+    void onCaptureFailed(String message);
+  }
+
+  public ScannerView(ThemedReactContext context) {
+    super(context);
+    this.reactContext = context;
+    this.detectionThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, "CustomCrop-scanner");
+      }
+    });
+    context.addLifecycleEventListener(this);
+  }
+
+  /**
+   * Forces the Camera 1 preview even where Camera2 is available, for devices
+   * whose Camera2 implementation misbehaves. Reopens the camera if it is open.
+   */
+  public void setLegacyCamera(boolean legacyCamera) {
+    if (this.legacyCamera == legacyCamera) {
+      return;
+    }
+    this.legacyCamera = legacyCamera;
+    if (camera != null) {
+      boolean wasEnabled = cameraEnabled;
+      disableCamera();
+      removeView(camera);
+      camera = null;
+      if (wasEnabled) {
+        enableIfPermitted();
+      }
+    }
+  }
+
+  /**
+   * Minimum time between the start of two detections, on top of the spacing
+   * the scheduler derives from the detection latency.
+   */
+  public void setMinDetectionInterval(long intervalMs) {
+    scheduler.setMinIntervalMs(intervalMs);
+  }
+
+  /**
+   * Share of one core the detections may take, see DetectionScheduler.
+   */
+  public void setMaxDetectionDutyCycle(double dutyCycle) {
+    scheduler.setMaxDutyCycle(dutyCycle);
+  }
+
+  /**
+   * Kalman filters the corners across detections, on by default.
+   */
+  public void setSmoothing(boolean smoothing) {
+    this.smoothing = smoothing;
+    smootherStale = true;
+  }
+
+  /**
+   * QuadDetector.TEXT or QuadDetector.CONTOUR, takes effect on the next detection.
+   */
+  public void setDetector(String detector) {
+    this.detector = detector;
+  }
+
+  /**
+   * Takes a full resolution JPEG while the preview runs. The outline is the
+   * one shown when called, the picture is taken a moment later, so the device
+   * should be held still. Called on the UI thread, the callback runs on a
+   * camera thread.
+   */
+  public void capture(final CaptureCallback callback) {
+    if (camera == null || !cameraEnabled) {
+      callback.onCaptureFailed("The scanner camera is not running");
+      return;
+    }
+    final ScannedDocument detection = lastDetection;
+    camera.takePicture(new CameraBridgeViewBase.PictureCallback() {
+      @Override
+      public void onPictureTaken(byte[] jpeg, int width, int height) {
+        ScannedDocument capture = new ScannedDocument(null);
+        capture.originalSize = new Size(width, height);
+        if (detection != null) {
+          capture.previewPoints = detection.previewPoints;
+          capture.previewSize = detection.previewSize;
+          capture.mapPreviewPoints();
+        }
+        callback.onCaptured(jpeg, capture);
+      }
+
+      @Override
+      public void onPictureFailed(String message) {
+        callback.onCaptureFailed(message);
+      }
+    });
+  }
+
+  /**
+   * Loads OpenCV off the main thread, then opens the camera.
+   */
+  public void start() {
+    detectionThread.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!OpenCVBootstrap.ensureLoaded(reactContext)) {
+          Log.e(TAG, "OpenCV could not be loaded, the scanner stays disabled");
+          return;
+        }
+        post(new Runnable() {
+          @Override
+          public void run() {
+            enableIfPermitted();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Closes the camera and frees the detection buffers once the detection in
+   * flight, if any, has completed. The view cannot be started again.
+   */
+  public void destroy() {
+    destroyed = true;
+    reactContext.removeLifecycleEventListener(this);
+    disableCamera();
+    detectionThread.execute(new Runnable() {
+      @Override
+      public void run() {
+        releaseDetection();
+      }
+    });
+    detectionThread.shutdown();
+  }
+
+  @Override
+  public void onHostResume() {
+    if (OpenCVBootstrap.isLoaded()) {
+      enableIfPermitted();
+    }
+  }
+
+  /**
+   * CameraBridgeViewBase finishes the activity when the camera cannot be
+   * opened, so never try without the permission, which the app requests.
+   */
+  private void enableIfPermitted() {
+    // OpenCV may finish loading after a fast unmount
+    if (destroyed) {
+      return;
+    }
+    if (reactContext.checkCallingOrSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+      Log.w(TAG, "Camera permission not granted, the scanner stays disabled");
+      return;
+    }
+    if (camera == null) {
+      camera = createCamera();
+      addView(camera, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+    }
+    camera.enableView();
+    cameraEnabled = true;
+  }
+
+  private CameraBridgeViewBase createCamera() {
+    CameraBridgeViewBase view;
+    if (!legacyCamera && JavaCamera2View.isSupported(reactContext, CameraBridgeViewBase.CAMERA_ID_BACK)) {
+      view = new JavaCamera2View(reactContext, CameraBridgeViewBase.CAMERA_ID_BACK);
+    } else {
+      view = new JavaCameraView(reactContext, CameraBridgeViewBase.CAMERA_ID_BACK);
+    }
+    view.setCvCameraViewListener(this);
+    return view;
+  }
+
+  private void disableCamera() {
+    if (camera != null) {
+      camera.disableView();
+    }
+    cameraEnabled = false;
+  }
+
+  @Override
+  public void onHostPause() {
+    disableCamera();
+  }
+
+  @Override
+  public void onHostDestroy() {
+    disableCamera();
+  }
+
+  /**
+   * React Native lays out its own views only, the camera added natively would
+   * never be measured, so lay it out over the whole view here.
+   */
+  @Override
+  protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+    int width = right - left;
+    int height = bottom - top;
+    for (int i = 0; i < getChildCount(); i++) {
+      View child = getChildAt(i);
+      child.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+          MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+      child.layout(0, 0, width, height);
+    }
+  }
+
+  @Override
+  public void onCameraViewStarted(int width, int height) {
+    frameWidth = width;
+    frameHeight = height;
+    outline = null;
+    lastDetection = null;
+    smootherStale = true;
+  }
+
+  @Override
+  public void onCameraViewStopped() {
+    outline = null;
+    lastDetection = null;
+  }
+
+  @Override
+  public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+    // Frames arriving while a detection runs are dropped, never queued
+    final long now = SystemClock.elapsedRealtime();
+    if (!destroyed && scheduler.tryStart(now)) {
+      if (detectionFrame == null) {
+        detectionFrame = new Mat();
+      }
+      // The luma plane is scaled straight into the detection buffer, the full frame is never copied
+      Mat gray = inputFrame.gray();
+      double scale = Math.min(1.0, (double) DETECTION_SIZE / Math.max(gray.cols(), gray.rows()));
+      detectionSize.width = Math.round(gray.cols() * scale);
+      detectionSize.height = Math.round(gray.rows() * scale);
+      Imgproc.resize(gray, detectionFrame, detectionSize, 0, 0, Imgproc.INTER_AREA);
+      detectionFrameScale = (double) gray.cols() / detectionSize.width;
+      try {
+        detectionThread.execute(new Runnable() {
+          @Override
+          public void run() {
+            detect(now);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // destroy raced this frame, the camera is being closed
+        scheduler.finish(0);
+      }
+    }
+
+    Mat rgba = inputFrame.rgba();
+    Point[] current = outline;
+    if (current != null) {
+      for (int i = 0; i < current.length; i++) {
+        Imgproc.line(rgba, current[i], current[(i + 1) % current.length], OUTLINE_COLOR, OUTLINE_THICKNESS);
+      }
+    }
+    return rgba;
+  }
+
+  private void detect(long frameTimeMs) {
+    long start = SystemClock.elapsedRealtime();
+    try {
+      String wanted = detector;
+      if (processor == null || !wanted.equals(processorDetector)) {
+        releaseProcessor();
+        DetectionOptions options = new DetectionOptions();
+        options.detector = wanted;
+        RNCustomCropModule module = reactContext.getNativeModule(RNCustomCropModule.class);
+        processor = module.newImageProcessor(options);
+        processorDetector = wanted;
+      }
+      // Not released, that would free detectionFrame which is reused for the next frame
+      ScannedDocument sd = processor.detect(detectionFrame, 1, null);
+      Point[] found = sd.originalPoints != null ? QuadGeometry.scalePoints(sd.originalPoints, detectionFrameScale) : null;
+      Point[] corners = smooth(found, frameTimeMs);
+      outline = corners;
+      lastDetection = corners != null ? previewDetection(corners) : null;
+      emitDetection(corners);
+    } catch (Exception e) {
+      Log.w(TAG, "Live detection failed", e);
+    } finally {
+      scheduler.finish(SystemClock.elapsedRealtime() - start);
+    }
+  }
+
+  private ScannedDocument previewDetection(Point[] corners) {
+    ScannedDocument detection = new ScannedDocument(null);
+    detection.previewPoints = corners;
+    detection.previewSize = new Size(frameWidth, frameHeight);
+    return detection;
+  }
+
+  private Point[] smooth(Point[] corners, long frameTimeMs) {
+    if (smootherStale) {
+      smootherStale = false;
+      if (smoother != null) {
+        smoother.reset();
+      }
+    }
+    if (!smoothing) {
+      return corners;
+    }
+    if (smoother == null) {
+      smoother = new CornerSmoother();
+    }
+    return smoother.update(corners, frameTimeMs, Math.hypot(frameWidth, frameHeight));
+  }
+
+  private void emitDetection(Point[] corners) {
+    WritableMap event = Arguments.createMap();
+    WritableMap points = ScannedDocument.pointsAsHash(corners);
+    if (points != null) {
+      event.putMap("points", points);
+    } else {
+      event.putNull("points");
+    }
+    event.putInt("frameWidth", frameWidth);
+    event.putInt("frameHeight", frameHeight);
+    event.putDouble("detectionIntervalMs", scheduler.intervalMs());
+    event.putDouble("detectionLatencyMs", scheduler.getAverageLatencyMs());
+    reactContext.getJSModule(RCTEventEmitter.class).receiveEvent(getId(), DOCUMENT_DETECTED_EVENT, event);
+  }
+
+  private void releaseDetection() {
+    releaseProcessor();
+    if (smoother != null) {
+      smoother.release();
+      smoother = null;
+    }
+    if (detectionFrame != null) {
+      detectionFrame.release();
+      detectionFrame = null;
+    }
+  }
+
+  private void releaseProcessor() {
+    if (processor != null) {
+      processor.release();
+      processor = null;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.util.Log;
+
+import com.facebook.react.common.MapBuilder;
+import com.facebook.react.uimanager.SimpleViewManager;
+import com.facebook.react.uimanager.ThemedReactContext;
+import com.facebook.react.uimanager.annotations.ReactProp;
+
+import java.util.Map;
+
+/**
+ * Exposes ScannerView to JS as CustomCropScannerView. The camera opens when
+ * the view is created, provided the app holds the camera permission.
+ */
+public class ScannerViewManager extends SimpleViewManager<ScannerView> {
+
+  private static final String TAG = "ScannerViewManager";
+
+  @Override
+  public String getName() {
+    return "CustomCropScannerView";
+  }
+
+  @Override
+  protected ScannerView createViewInstance(ThemedReactContext reactContext) {
+    ScannerView view = new ScannerView(reactContext);
+    view.start();
+    return view;
+  }
+
+  @Override
+  public void onDropViewInstance(ScannerView view) {
+    super.onDropViewInstance(view);
+    view.destroy();
+  }
+
+  @ReactProp(name = "minDetectionInterval", defaultInt = 0)
+  public void setMinDetectionInterval(ScannerView view, int intervalMs) {
+    view.setMinDetectionInterval(intervalMs);
+  }
+
+  @ReactProp(name = "maxDetectionDutyCycle", defaultDouble = DetectionScheduler.DEFAULT_MAX_DUTY_CYCLE)
+  public void setMaxDetectionDutyCycle(ScannerView view, double dutyCycle) {
+    view.setMaxDetectionDutyCycle(dutyCycle);
+  }
+
+  @ReactProp(name = "smoothing", defaultBoolean = true)
+  public void setSmoothing(ScannerView view, boolean smoothing) {
+    view.setSmoothing(smoothing);
+  }
+
+  @ReactProp(name = "legacyCamera", defaultBoolean = false)
+  public void setLegacyCamera(ScannerView view, boolean legacyCamera) {
+    view.setLegacyCamera(legacyCamera);
+  }
+
+  @ReactProp(name = "detector")
+  public void setDetector(ScannerView view, String detector) {
+    // Throwing from a prop setter would crash the app, an unknown detector falls back to the default
+    if (detector != null && !QuadDetector.TEXT.equals(detector) && !QuadDetector.CONTOUR.equals(detector)) {
+      Log.w(TAG, "Unknown detector " + detector + ", using " + QuadDetector.TEXT);
+      detector = null;
+    }
+    if (detector == null) {
+      detector = QuadDetector.TEXT;
+    }
+    view.setDetector(detector);
+  }
+
+  @Override
+  public Map<String, Object> getExportedCustomDirectEventTypeConstants() {
+    return MapBuilder.<String, Object>of(ScannerView.DOCUMENT_DETECTED_EVENT,
+        MapBuilder.of("registrationName", "onDocumentDetected"));
+  }
+}
@@ -0,0 +1,59 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Full resolution windows of an encoded image, for refining corners found on
+ * a subsampled decode without decoding every pixel. Like the region decoder
+ * it reads from, it ignores the EXIF orientation.
+ */
+public class SourceRegions {
+
+  private final BitmapRegionDecoder decoder;
+  private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+
+  public SourceRegions(BitmapRegionDecoder decoder) {
+    this.decoder = decoder;
+    decodeOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+  }
+
+  public int getWidth() {
+    return decoder.getWidth();
+  }
+
+  public int getHeight() {
+    return decoder.getHeight();
+  }
+
+  /**
+   * Gray Mat of the source pixels from (x0, y0) to (x1, y1) excluded, owned
+   * by the caller, or null when the region cannot be decoded.
+   */
+  public Mat readGray(int x0, int y0, int x1, int y1) {
+    Bitmap region = decoder.decodeRegion(new Rect(x0, y0, x1, y1), decodeOptions);
+    if (region == null) {
+      return null;
+    }
+    Mat rgba = new Mat();
+    try {
+      Utils.bitmapToMat(region, rgba);
+      Mat gray = new Mat();
+      Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+      return gray;
+    } finally {
+      rgba.release();
+      region.recycle();
+    }
+  }
+
+  public void recycle() {
+    decoder.recycle();
+  }
+}
@@ -0,0 +1,90 @@
+package fr.michaelvilleneuve.customcrop;
+
+import fr.michaelvilleneuve.helpers.MatScope;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wall clock time of one crop or detection split into stages, plus the peak
+ * native bytes held by the MatScopes it watches. Each lap charges the time
+ * since the previous one to the stage it names, stages lapped several times
+ * add up. One instance serves one operation on one thread.
+ */
+public class StageTimer {
+
+  public static final String DECODE = "decode";
+  public static final String CONVERT = "convert";
+  // Text recognition or contour search
+  public static final String DETECT = "detect";
+  // Fitting, ordering and refining the corners
+  public static final String FIT = "fit";
+  public static final String WARP = "warp";
+  public static final String ENCODE = "encode";
+  // Building the result handed to the bridge
+  public static final String SERIALIZE = "serialize";
+
+  private final String operation;
+  private final long startNanos;
+  private long lapNanos;
+  private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+  private final List<MatScope> scopes = new ArrayList<>();
+  private long peakNativeBytes;
+
+  public StageTimer(String operation) {
+    this.operation = operation;
+    this.startNanos = System.nanoTime();
+    this.lapNanos = startNanos;
+  }
+
+  public void lap(String stage) {
+    long now = System.nanoTime();
+    Long total = stageNanos.get(stage);
+    stageNanos.put(stage, (total != null ? total : 0) + now - lapNanos);
+    lapNanos = now;
+    sampleNativeBytes();
+  }
+
+  /**
+   * Counts the bytes of scope at every lap, until unwatched. Unwatch before
+   * closing the scope.
+   */
+  public void watch(MatScope scope) {
+    scopes.add(scope);
+    sampleNativeBytes();
+  }
+
+  public void unwatch(MatScope scope) {
+    sampleNativeBytes();
+    scopes.remove(scope);
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  /**
+   * Time from creation to the last lap, the sum of the stages.
+   */
+  public long getTotalNanos() {
+    return lapNanos - startNanos;
+  }
+
+  /**
+   * Nanoseconds per stage, in the order the stages were first lapped.
+   */
+  public Map<String, Long> getStageNanos() {
+    return Collections.unmodifiableMap(stageNanos);
+  }
+
+  public long getPeakNativeBytes() {
+    return peakNativeBytes;
+  }
+
+  private void sampleNativeBytes() {
+    peakNativeBytes = Math.max(peakNativeBytes, MatScope.bytes(scopes));
+  }
+}
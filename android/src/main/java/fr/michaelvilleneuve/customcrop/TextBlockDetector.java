@@ -0,0 +1,89 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.text.Text;
+import com.google.mlkit.vision.text.TextRecognizer;
+
+import fr.michaelvilleneuve.helpers.QuadGeometry;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Outlines the document as the minimum area rectangle around the text blocks
+ * found by ML Kit text recognition.
+ */
+public class TextBlockDetector implements QuadDetector {
+
+  private final TextRecognizer mRecognizer;
+  private final DetectionMetrics mMetrics;
+
+  // Reused across detections, batches mostly see images of the same size
+  private final Mat mScratchRgba = new Mat();
+  private Bitmap mScratchBitmap;
+
+  public TextBlockDetector(TextRecognizer recognizer, DetectionMetrics metrics) {
+    mRecognizer = recognizer;
+    mMetrics = metrics;
+  }
+
+  @Override
+  public Point[] detect(Mat img, StageTimer timer) throws ExecutionException, InterruptedException {
+    // One conversion straight to the Bitmap layout, matToBitmap then only copies
+    Imgproc.cvtColor(img, mScratchRgba, img.channels() == 1 ? Imgproc.COLOR_GRAY2RGBA : Imgproc.COLOR_BGR2RGBA);
+    Bitmap bmp = scratchBitmap(mScratchRgba.cols(), mScratchRgba.rows());
+    Utils.matToBitmap(mScratchRgba, bmp);
+    timer.lap(StageTimer.CONVERT);
+
+    InputImage image = InputImage.fromBitmap(bmp, 0);
+    boolean cold = mMetrics.startDetection();
+    long detectionStart = SystemClock.elapsedRealtime();
+
+    Text visionText = Tasks.await(mRecognizer.process(image));
+    mMetrics.record(SystemClock.elapsedRealtime() - detectionStart, cold);
+    timer.lap(StageTimer.DETECT);
+
+    Point[] pts = processTextBlock(visionText);
+    timer.lap(StageTimer.FIT);
+    return pts[0] != null ? pts : null;
+  }
+
+  private Point[] processTextBlock(Text result) {
+    ArrayList<Point> points = new ArrayList<>();
+    for (Text.TextBlock block : result.getTextBlocks()) {
+      android.graphics.Point[] blockCornerPoints = block.getCornerPoints();
+      for (android.graphics.Point p : blockCornerPoints) {
+        points.add(new Point(p.x, p.y));
+      }
+    }
+    return QuadGeometry.minAreaQuad(points);
+  }
+
+  private Bitmap scratchBitmap(int width, int height) {
+    if (mScratchBitmap == null || mScratchBitmap.getWidth() != width || mScratchBitmap.getHeight() != height) {
+      if (mScratchBitmap != null) {
+        mScratchBitmap.recycle();
+      }
+      mScratchBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+    return mScratchBitmap;
+  }
+
+  @Override
+  public void release() {
+    mScratchRgba.release();
+    if (mScratchBitmap != null) {
+      mScratchBitmap.recycle();
+      mScratchBitmap = null;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package fr.michaelvilleneuve.customcrop;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import fr.michaelvilleneuve.helpers.MatScope;
+import fr.michaelvilleneuve.helpers.QuadGeometry;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Perspective warp computed in horizontal strips of the output. Each strip
+ * decodes only the source region it maps from, so the full source image is
+ * never held in memory, only the output and one source strip.
+ */
+public class TiledWarp {
+
+  public static final int DEFAULT_STRIP_HEIGHT = 256;
+  // Extra source pixels around each region for the bilinear interpolation
+  private static final int REGION_MARGIN = 2;
+
+  private final BitmapRegionDecoder decoder;
+  private final int sampleSize;
+  private final int stripHeight;
+
+  public TiledWarp(BitmapRegionDecoder decoder, int sampleSize, int stripHeight) {
+    this.decoder = decoder;
+    this.sampleSize = sampleSize;
+    this.stripHeight = Math.max(1, stripHeight);
+  }
+
+  /**
+   * Warps the quad given by corners (top left, top right, bottom left, bottom
+   * right, in source pixels) into a new outWidth x outHeight BGR Mat owned by
+   * the caller. The decode, convert and warp of every strip are lapped on timer.
+   */
+  public Mat warp(Point[] corners, int outWidth, int outHeight, StageTimer timer) {
+    double[] forward = homography(corners, outWidth, outHeight);
+    double[] inverse = invert(forward);
+
+    MatScope output = new MatScope();
+    Mat dst = output.track(new Mat(outHeight, outWidth, CvType.CV_8UC3, Scalar.all(0)));
+    timer.watch(output);
+    BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+    decodeOptions.inSampleSize = sampleSize;
+    decodeOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+    try {
+      for (int y0 = 0; y0 < outHeight; y0 += stripHeight) {
+        warpStrip(forward, inverse, dst, y0, decodeOptions, timer);
+      }
+      return output.detach(dst);
+    } finally {
+      timer.unwatch(output);
+      output.close();
+    }
+  }
+
+  private void warpStrip(double[] forward, double[] inverse, Mat dst, int y0, BitmapFactory.Options decodeOptions,
+      StageTimer timer) {
+    int outWidth = dst.cols();
+    int y1 = Math.min(dst.rows(), y0 + stripHeight);
+    Rect region = sourceRegion(inverse, outWidth, y0, y1);
+    if (region == null) {
+      return;
+    }
+
+    MatScope scope = new MatScope();
+    timer.watch(scope);
+    try {
+      Bitmap strip = decoder.decodeRegion(region, decodeOptions);
+      timer.lap(StageTimer.DECODE);
+      Mat stripSrc = scope.track(new Mat());
+      Utils.bitmapToMat(strip, stripSrc);
+      strip.recycle();
+      timer.lap(StageTimer.CONVERT);
+
+      // The decoder may round the sample size, use the scale it actually applied
+      double sx = (double) region.width() / stripSrc.cols();
+      double sy = (double) region.height() / stripSrc.rows();
+      Mat stripTransform = scope.track(new Mat(3, 3, CvType.CV_64F));
+      stripTransform.put(0, 0, stripHomography(forward, region.left, region.top, sx, sy, y0));
+
+      Mat warped = scope.track(new Mat());
+      Imgproc.warpPerspective(stripSrc, warped, stripTransform, new Size(outWidth, y1 - y0));
+      timer.lap(StageTimer.WARP);
+      // Writes through the submat straight into the output rows
+      Mat rows = scope.track(dst.submat(y0, y1, 0, outWidth));
+      Imgproc.cvtColor(warped, rows, Imgproc.COLOR_RGBA2BGR);
+      timer.lap(StageTimer.CONVERT);
+    } finally {
+      timer.unwatch(scope);
+      scope.close();
+    }
+  }
+
+  private static double[] homography(Point[] corners, int outWidth, int outHeight) {
+    Mat warpMat = QuadGeometry.cropTransform(corners, outWidth, outHeight);
+    double[] h = new double[9];
+    warpMat.get(0, 0, h);
+    warpMat.release();
+    return h;
+  }
+
+  /**
+   * Source rectangle, in full resolution pixels, covering output rows y0 to y1.
+   * A homography maps the strip edges to straight lines, so the bounding box of
+   * its four mapped corners covers the whole strip.
+   */
+  private Rect sourceRegion(double[] inverse, int outWidth, int y0, int y1) {
+    double[][] strip = { { 0, y0 }, { outWidth, y0 }, { 0, y1 }, { outWidth, y1 } };
+    double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+    for (double[] p : strip) {
+      double w = inverse[6] * p[0] + inverse[7] * p[1] + inverse[8];
+      double x = (inverse[0] * p[0] + inverse[1] * p[1] + inverse[2]) / w;
+      double y = (inverse[3] * p[0] + inverse[4] * p[1] + inverse[5]) / w;
+      minX = Math.min(minX, x);
+      minY = Math.min(minY, y);
+      maxX = Math.max(maxX, x);
+      maxY = Math.max(maxY, y);
+    }
+
+    int left = (int) Math.max(0, Math.floor(minX) - REGION_MARGIN * sampleSize);
+    int top = (int) Math.max(0, Math.floor(minY) - REGION_MARGIN * sampleSize);
+    int right = (int) Math.min(decoder.getWidth(), Math.ceil(maxX) + REGION_MARGIN * sampleSize);
+    int bottom = (int) Math.min(decoder.getHeight(), Math.ceil(maxY) + REGION_MARGIN * sampleSize);
+    if (right <= left || bottom <= top) {
+      return null;
+    }
+    return new Rect(left, top, right, bottom);
+  }
+
+  /**
+   * forward composed with the strip's source offset and scale on the right and
+   * the output row offset on the left.
+   */
+  private static double[] stripHomography(double[] h, double left, double top, double sx, double sy, double y0) {
+    double[] m = {
+        h[0] * sx, h[1] * sy, h[0] * left + h[1] * top + h[2],
+        h[3] * sx, h[4] * sy, h[3] * left + h[4] * top + h[5],
+        h[6] * sx, h[7] * sy, h[6] * left + h[7] * top + h[8],
+    };
+    for (int col = 0; col < 3; col++) {
+      m[3 + col] -= y0 * m[6 + col];
+    }
+    return m;
+  }
+
+  private static double[] invert(double[] m) {
+    double a = m[4] * m[8] - m[5] * m[7];
+    double b = m[5] * m[6] - m[3] * m[8];
+    double c = m[3] * m[7] - m[4] * m[6];
+    double det = m[0] * a + m[1] * b + m[2] * c;
+    if (Math.abs(det) < 1e-12) {
+      throw new IllegalArgumentException("Degenerate crop quadrilateral");
+    }
+    return new double[] {
+        a / det, (m[2] * m[7] - m[1] * m[8]) / det, (m[1] * m[5] - m[2] * m[4]) / det,
+        b / det, (m[0] * m[8] - m[2] * m[6]) / det, (m[2] * m[3] - m[0] * m[5]) / det,
+        c / det, (m[1] * m[6] - m[0] * m[7]) / det, (m[0] * m[4] - m[1] * m[3]) / det,
+    };
+  }
+}
@@ -0,0 +1,71 @@
+package fr.michaelvilleneuve.customcrop;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool running crop and detection work off the native modules thread.
+ * Work beyond the queue capacity is rejected instead of piling up, so callers
+ * can report back-pressure to JS.
+ */
+public class WorkerPool {
+
+  // Each job holds a full-size image in memory, more threads than this only adds pressure
+  private static final int MAX_THREADS = 4;
+  private static final int QUEUE_CAPACITY_PER_THREAD = 4;
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private final ThreadPoolExecutor executor;
+
+  public WorkerPool(int threads, int queueCapacity) {
+    executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity), new BackgroundThreadFactory("CustomCrop-worker-"));
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  public static WorkerPool forDevice() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    // Leave one core to the UI and JS threads
+    int threads = Math.max(1, Math.min(cores - 1, MAX_THREADS));
+    return new WorkerPool(threads, threads * QUEUE_CAPACITY_PER_THREAD);
+  }
+
+  /**
+   * Queues a task, returns false when the pool is saturated or shut down.
+   */
+  public boolean execute(Runnable task) {
+    try {
+      executor.execute(task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Queues a task, returns null when the pool is saturated or shut down.
+   */
+  public <T> Future<T> submit(Callable<T> task) {
+    try {
+      return executor.submit(task);
+    } catch (RejectedExecutionException e) {
+      return null;
+    }
+  }
+
+  public int getPoolSize() {
+    return executor.getMaximumPoolSize();
+  }
+
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
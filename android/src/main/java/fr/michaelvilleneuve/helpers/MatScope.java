@@ -0,0 +1,148 @@
+package fr.michaelvilleneuve.helpers;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Owns the Mats allocated by one processing call and releases them together,
+ * instead of leaving their native memory to Mat.finalize().
+ *
+ *     MatScope scope = new MatScope();
+ *     try {
+ *         Mat gray = scope.track(new Mat());
+ *         ...
+ *     } finally {
+ *         scope.close();
+ *     }
+ *
+ * Open scopes also feed a debug counter of the native bytes they hold. Each
+ * allocation counts once, however many submats and headers, in one scope or
+ * several, share it. The peak is sampled whenever a Mat is tracked and when a
+ * scope closes, so it misses growth between two of those, such as a tracked
+ * empty Mat filled later.
+ */
+public class MatScope {
+
+    private static final Set<MatScope> openScopes =
+            Collections.newSetFromMap(new IdentityHashMap<MatScope, Boolean>());
+    private static long peakBytes;
+
+    private final ArrayList<Mat> mats = new ArrayList<>();
+    private boolean closed;
+
+    public MatScope() {
+        synchronized (openScopes) {
+            openScopes.add(this);
+        }
+    }
+
+    public <T extends Mat> T track(T mat) {
+        synchronized (this) {
+            if (closed) {
+                mat.release();
+                throw new IllegalStateException("MatScope already closed");
+            }
+            mats.add(mat);
+        }
+        // Out of the lock of this scope, liveBytes takes the lock of every open scope
+        liveBytes();
+        return mat;
+    }
+
+    /**
+     * Hands a tracked Mat over to the caller, who becomes responsible for releasing it.
+     */
+    public synchronized <T extends Mat> T detach(T mat) {
+        for (int i = mats.size() - 1; i >= 0; i--) {
+            if (mats.get(i) == mat) {
+                mats.remove(i);
+                break;
+            }
+        }
+        return mat;
+    }
+
+    /**
+     * Native bytes currently held by the Mats of this scope.
+     */
+    public long bytes() {
+        return bytes(Collections.singleton(this));
+    }
+
+    /**
+     * Native bytes currently held by the Mats of scopes, an allocation shared
+     * between them counted once.
+     */
+    public static long bytes(Iterable<MatScope> scopes) {
+        Map<Long, Long> allocations = new HashMap<>();
+        for (MatScope scope : scopes) {
+            scope.collectAllocations(allocations);
+        }
+        long bytes = 0;
+        for (long size : allocations.values()) {
+            bytes += size;
+        }
+        return bytes;
+    }
+
+    /*
+     * Adds the allocation under each Mat, keyed by its start address: a submat
+     * is located in its parent, whose whole buffer it keeps alive.
+     */
+    private synchronized void collectAllocations(Map<Long, Long> allocations) {
+        Size whole = new Size();
+        Point offset = new Point();
+        for (Mat mat : mats) {
+            if (mat.empty()) {
+                continue;
+            }
+            mat.locateROI(whole, offset);
+            long rowBytes = mat.step1(0) * mat.elemSize1();
+            long start = mat.dataAddr() - (long) offset.y * rowBytes - (long) offset.x * mat.elemSize();
+            long size = (long) whole.height * rowBytes;
+            Long known = allocations.get(start);
+            if (known == null || known < size) {
+                allocations.put(start, size);
+            }
+        }
+    }
+
+    public void close() {
+        liveBytes();
+        synchronized (this) {
+            for (int i = mats.size() - 1; i >= 0; i--) {
+                mats.get(i).release();
+            }
+            mats.clear();
+            closed = true;
+        }
+        synchronized (openScopes) {
+            openScopes.remove(this);
+        }
+    }
+
+    /**
+     * Native bytes held by all open scopes, also updates the peak.
+     */
+    public static long liveBytes() {
+        synchronized (openScopes) {
+            long bytes = bytes(openScopes);
+            peakBytes = Math.max(peakBytes, bytes);
+            return bytes;
+        }
+    }
+
+    public static long peakBytes() {
+        synchronized (openScopes) {
+            return peakBytes;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package fr.michaelvilleneuve.helpers;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Corner geometry shared by detection and cropping. Nothing here depends on
+ * Android, so the benchmarks run it on a desktop JVM.
+ */
+public class QuadGeometry {
+
+    private static final Comparator<Point> SUM_COMPARATOR = new Comparator<Point>() {
+        @Override
+        public int compare(Point lhs, Point rhs) {
+            return Double.compare(lhs.y + lhs.x, rhs.y + rhs.x);
+        }
+    };
+
+    private static final Comparator<Point> DIFF_COMPARATOR = new Comparator<Point>() {
+        @Override
+        public int compare(Point lhs, Point rhs) {
+            return Double.compare(lhs.y - lhs.x, rhs.y - rhs.x);
+        }
+    };
+
+    private QuadGeometry() {
+    }
+
+    /**
+     * Orders four corners top left, top right, bottom right, bottom left.
+     */
+    public static Point[] sortPoints(Point[] src) {
+        List<Point> srcPoints = new ArrayList<>(Arrays.asList(src));
+        Point[] result = { null, null, null, null };
+
+        // top-left corner = minimal sum
+        result[0] = Collections.min(srcPoints, SUM_COMPARATOR);
+
+        // bottom-right corner = maximal sum
+        result[2] = Collections.max(srcPoints, SUM_COMPARATOR);
+
+        // top-right corner = minimal difference
+        result[1] = Collections.min(srcPoints, DIFF_COMPARATOR);
+
+        // bottom-left corner = maximal difference
+        result[3] = Collections.max(srcPoints, DIFF_COMPARATOR);
+
+        return result;
+    }
+
+    /**
+     * Corners in any order, ordered top left, top right, bottom left, bottom
+     * right as crops take them.
+     */
+    public static Point[] cropOrder(Point[] corners) {
+        Point[] sorted = sortPoints(corners);
+        return new Point[] { sorted[0], sorted[1], sorted[3], sorted[2] };
+    }
+
+    public static Point[] scalePoints(Point[] pts, double factor) {
+        Point[] mapped = new Point[pts.length];
+        for (int i = 0; i < pts.length; i++) {
+            mapped[i] = new Point(pts[i].x * factor, pts[i].y * factor);
+        }
+        return mapped;
+    }
+
+    /**
+     * Longer of the top and bottom edges of corners ordered top left, top right,
+     * bottom left, bottom right.
+     */
+    public static double quadWidth(Point[] corners) {
+        double top = Math.sqrt(Math.pow(corners[1].x - corners[0].x, 2) + Math.pow(corners[1].y - corners[0].y, 2));
+        double bottom = Math.sqrt(Math.pow(corners[3].x - corners[2].x, 2) + Math.pow(corners[3].y - corners[2].y, 2));
+        return Math.max(bottom, top);
+    }
+
+    /**
+     * Longer of the left and right edges, same corner order as quadWidth.
+     */
+    public static double quadHeight(Point[] corners) {
+        double left = Math.sqrt(Math.pow(corners[0].x - corners[2].x, 2) + Math.pow(corners[0].y - corners[2].y, 2));
+        double right = Math.sqrt(Math.pow(corners[1].x - corners[3].x, 2) + Math.pow(corners[1].y - corners[3].y, 2));
+        return Math.max(right, left);
+    }
+
+    /**
+     * Perspective transform of the quad at corners, in crop order, onto an
+     * upright outWidth by outHeight image. The caller releases it.
+     */
+    public static Mat cropTransform(Point[] corners, int outWidth, int outHeight) {
+        MatOfPoint2f startMat = new MatOfPoint2f(corners);
+        MatOfPoint2f endMat = new MatOfPoint2f(new Point(0, 0), new Point(outWidth, 0), new Point(0, outHeight),
+                new Point(outWidth, outHeight));
+        try {
+            return Imgproc.getPerspectiveTransform(startMat, endMat);
+        } finally {
+            startMat.release();
+            endMat.release();
+        }
+    }
+
+    /**
+     * Corners of the minimum area rectangle around points, in no particular
+     * order, or four nulls when there are no points.
+     */
+    public static Point[] minAreaQuad(List<Point> points) {
+        Point[] vertices = { null, null, null, null };
+        if (points.isEmpty()) {
+            return vertices;
+        }
+        MatOfPoint2f temp = new MatOfPoint2f();
+        try {
+            temp.fromList(points);
+            RotatedRect rrect = Imgproc.minAreaRect(temp);
+            rrect.points(vertices);
+        } finally {
+            temp.release();
+        }
+        return vertices;
+    }
+}
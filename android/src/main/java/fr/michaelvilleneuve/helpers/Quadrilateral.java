@@ -1,6 +1,5 @@
 package fr.michaelvilleneuve.helpers;
 
-import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
 
 /**
@@ -14,8 +14,10 @@ public class ScannedDocument {
 
     public Mat original;
     public Mat processed;
+    // Corners on the low resolution image detection ran on, in the order of originalPoints
     public Point[] previewPoints;
     public Size previewSize;
+    // Full resolution image originalPoints are in
     public Size originalSize;
 
     public Point[] originalPoints;
@@ -33,28 +35,60 @@ public class ScannedDocument {
         return this;
     }
 
+    /**
+     * Maps previewPoints onto the image of originalSize and stores them as originalPoints, so a
+     * quad detected on a preview frame crops a picture of the same scene without another detection.
+     * Both images are assumed to span the width of the sensor and be centered vertically, which
+     * holds when neither is narrower than the sensor, and is a plain scale when their aspect
+     * ratios match.
+     */
+    public Point[] mapPreviewPoints() {
+        if (previewPoints == null || previewSize == null || originalSize == null) {
+            originalPoints = null;
+            return null;
+        }
+
+        double scale = originalSize.width / previewSize.width;
+        double offsetY = (originalSize.height - previewSize.height * scale) / 2;
+        originalPoints = new Point[previewPoints.length];
+        for (int i = 0; i < previewPoints.length; i++) {
+            double x = previewPoints[i].x * scale;
+            double y = previewPoints[i].y * scale + offsetY;
+            originalPoints[i] = new Point(Math.min(Math.max(x, 0), originalSize.width),
+                    Math.min(Math.max(y, 0), originalSize.height));
+        }
+        return originalPoints;
+    }
+
     public WritableMap pointsAsHash() {
-        if (this.originalPoints == null) {
+        return pointsAsHash(this.originalPoints);
+    }
+
+    /**
+     * Corners in the order of originalPoints as the map returned to JS, null when there are none.
+     */
+    public static WritableMap pointsAsHash(Point[] originalPoints) {
+        if (originalPoints == null) {
             return null;
         }
 
         WritableMap rectangleCoordinates = new WritableNativeMap();
 
         WritableMap topLeft = new WritableNativeMap();
-        topLeft.putDouble("x", this.originalPoints[0].x);
-        topLeft.putDouble("y", this.originalPoints[0].y);
+        topLeft.putDouble("x", originalPoints[0].x);
+        topLeft.putDouble("y", originalPoints[0].y);
 
         WritableMap topRight = new WritableNativeMap();
-        topRight.putDouble("x", this.originalPoints[1].x);
-        topRight.putDouble("y", this.originalPoints[1].y);
+        topRight.putDouble("x", originalPoints[1].x);
+        topRight.putDouble("y", originalPoints[1].y);
 
         WritableMap bottomRight = new WritableNativeMap();
-        bottomRight.putDouble("x", this.originalPoints[2].x);
-        bottomRight.putDouble("y", this.originalPoints[2].y);
+        bottomRight.putDouble("x", originalPoints[2].x);
+        bottomRight.putDouble("y", originalPoints[2].y);
 
         WritableMap bottomLeft = new WritableNativeMap();
-        bottomLeft.putDouble("x", this.originalPoints[3].x);
-        bottomLeft.putDouble("y", this.originalPoints[3].y);
+        bottomLeft.putDouble("x", originalPoints[3].x);
+        bottomLeft.putDouble("y", originalPoints[3].y);
 
         rectangleCoordinates.putMap("topLeft", topLeft);
         rectangleCoordinates.putMap("topRight", topRight);
@@ -64,13 +98,17 @@ public class ScannedDocument {
         return rectangleCoordinates;
     }
 
+    /**
+     * Frees the images, only the corners and sizes stay usable afterwards.
+     */
     public void release() {
         if (processed != null) {
             processed.release();
+            processed = null;
         }
         if (original != null) {
             original.release();
+            original = null;
         }
-
     }
 }
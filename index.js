@@ -7,6 +7,9 @@ import {
   View,
   Animated,
   ActivityIndicator,
+  Platform,
+  requireNativeComponent,
+  findNodeHandle,
 } from 'react-native';
 import Svg, { Polygon } from 'react-native-svg';
 
@@ -484,4 +487,14 @@ const s = (props) => ({
   },
 });
 
+// Live camera scanner, Android only
+export const ScannerView = Platform.OS === 'android'
+  ? requireNativeComponent('CustomCropScannerView')
+  : null;
+
+// Full resolution picture from a mounted ScannerView, cropped with the outline shown
+export function captureDocument(scanner, options, callback) {
+  NativeModules.CustomCropManager.captureDocument(findNodeHandle(scanner), options || {}, callback);
+}
+
 export default CustomCrop;